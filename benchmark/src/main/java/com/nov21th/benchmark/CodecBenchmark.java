@@ -0,0 +1,190 @@
+package com.nov21th.benchmark;
+
+import com.nov21th.common.Constant;
+import com.nov21th.tcp.codec.Frame;
+import com.nov21th.tcp.codec.FrameBuilder;
+import com.nov21th.tcp.codec.FrameCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 比较原先以换行与制表符分隔的文本协议与二进制帧协议编解码文件列表（LIST响应）的开销
+ * <p>
+ * 文本协议的编解码逻辑照搬自改为二进制帧之前的CentralServer与Peer。
+ * 用法：java -jar benchmarks.jar CodecBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({"10", "1000"})
+    private int files;
+
+    @Param({"4"})
+    private int owners;
+
+    @Param({"16"})
+    private int pieces;
+
+    private String[] names;
+
+    private String[] hashes;
+
+    private long[] sizes;
+
+    private String[][] ownerIPs;
+
+    private String[][] pieceHashes;
+
+    private byte[] text;
+
+    private ByteBuffer binary;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        names = new String[files];
+        hashes = new String[files];
+        sizes = new long[files];
+        ownerIPs = new String[files][owners];
+        pieceHashes = new String[files][pieces];
+        for (int i = 0; i < files; i++) {
+            names[i] = "共享文件-" + i + ".bin";
+            hashes[i] = randomHash(random);
+            sizes[i] = random.nextLong() & Long.MAX_VALUE;
+            for (int j = 0; j < owners; j++) {
+                ownerIPs[i][j] = "192.168." + random.nextInt(256) + "." + random.nextInt(256);
+            }
+            for (int j = 0; j < pieces; j++) {
+                pieceHashes[i][j] = randomHash(random);
+            }
+        }
+
+        text = encodeText();
+        binary = encodeBinary();
+    }
+
+    @Benchmark
+    public byte[] textEncode() {
+        return encodeText();
+    }
+
+    @Benchmark
+    public ByteBuffer binaryEncode() {
+        return encodeBinary();
+    }
+
+    @Benchmark
+    public void textDecode(Blackhole bh) {
+        String response = new String(text, UTF_8);
+        response = response.substring(Constant.CMD_OK.length() + 1);
+
+        for (String line : response.split("\n")) {
+            String[] infos = line.split("\t");
+            bh.consume(infos[0]);
+            bh.consume(infos[1]);
+            bh.consume(Long.parseLong(infos[2]));
+            bh.consume(infos[3].split("/"));
+            bh.consume(infos[4].split(","));
+        }
+    }
+
+    @Benchmark
+    public void binaryDecode(Blackhole bh) {
+        ByteBuffer payload = binary.duplicate();
+        payload.position(FrameCodec.HEADER_LENGTH);
+        Frame frame = new Frame(payload.get(0), payload);
+
+        int count = frame.getInt();
+        for (int i = 0; i < count; i++) {
+            bh.consume(frame.getString());
+            bh.consume(frame.getHash());
+            bh.consume(frame.getLong());
+
+            int ownerCount = frame.getInt();
+            for (int j = 0; j < ownerCount; j++) {
+                bh.consume(frame.getString());
+            }
+            int pieceCount = frame.getInt();
+            for (int j = 0; j < pieceCount; j++) {
+                bh.consume(frame.getHash());
+            }
+        }
+    }
+
+    private byte[] encodeText() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(Constant.CMD_OK);
+        for (int f = 0; f < files; f++) {
+            sb.append('\n');
+            sb.append(names[f]);
+            sb.append('\t');
+            sb.append(hashes[f]);
+            sb.append('\t');
+            sb.append(sizes[f]);
+            sb.append('\t');
+            for (int i = 0; i < owners; i++) {
+                sb.append(ownerIPs[f][i]);
+                if (i + 1 != owners) {
+                    sb.append('/');
+                }
+            }
+            sb.append('\t');
+            for (int i = 0; i < pieces; i++) {
+                if (i != 0) {
+                    sb.append(',');
+                }
+                sb.append(pieceHashes[f][i]);
+            }
+        }
+        return sb.toString().getBytes(UTF_8);
+    }
+
+    private ByteBuffer encodeBinary() {
+        FrameBuilder response = new FrameBuilder(Constant.OP_OK, files * 64);
+        response.putInt(files);
+        for (int f = 0; f < files; f++) {
+            response.putString(names[f]);
+            response.putHash(hashes[f]);
+            response.putLong(sizes[f]);
+            response.putInt(owners);
+            for (int i = 0; i < owners; i++) {
+                response.putString(ownerIPs[f][i]);
+            }
+            response.putInt(pieces);
+            for (int i = 0; i < pieces; i++) {
+                response.putHash(pieceHashes[f][i]);
+            }
+        }
+        return response.build();
+    }
+
+    private static String randomHash(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 32; i++) {
+            sb.append(Character.forDigit(random.nextInt(16), 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,110 @@
+package com.nov21th.benchmark;
+
+import com.nov21th.common.Constant;
+import com.nov21th.tcp.codec.Frame;
+import com.nov21th.tcp.codec.FrameBuilder;
+import com.nov21th.tcp.codec.FrameDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文件传输服务器解析请求头的开销：从读到的数据中解码出OP_REQUEST与OP_FETCH帧，
+ * 并按FileTransferServer.onFrame的方式读出文件名、范围与块序号，以及构造响应头的开销
+ * <p>
+ * decodeWhole中整批请求位于同一段数据中，decodeSegmented按以太网MSS切分，跨段的帧需要拷贝。
+ * 用法：java -jar benchmarks.jar FrameBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+
+    private static final int REQUESTS = 256;
+
+    private static final int SEGMENT_SIZE = 1448;
+
+    private ByteBuffer requests;
+
+    private FrameDecoder decoder;
+
+    /**
+     * 解析出的各字段累加于此，避免被优化掉
+     */
+    private long parsed;
+
+    @Setup
+    public void setup() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(REQUESTS * 128);
+        for (int i = 0; i < REQUESTS; i++) {
+            String name = "共享文件-" + i + ".bin";
+            if (i % 2 == 0) {
+                buffer.put(new FrameBuilder(Constant.OP_FETCH).putString(name).putInt(i).build());
+            } else {
+                buffer.put(new FrameBuilder(Constant.OP_REQUEST).putString(name)
+                        .putLong((long) i * Constant.PIECE_SIZE).putLong(Constant.PIECE_SIZE).build());
+            }
+        }
+        buffer.flip();
+        requests = buffer;
+
+        decoder = new FrameDecoder(new FrameDecoder.Handler() {
+            @Override
+            public void onFrame(Frame frame) {
+                String filename = frame.getString();
+                parsed += filename.length();
+                if (frame.getOpcode() == Constant.OP_FETCH) {
+                    parsed += frame.getInt();
+                } else if (frame.hasRemaining()) {
+                    parsed += frame.getLong() + frame.getLong();
+                }
+            }
+
+            @Override
+            public void onBulkData(ByteBuffer chunk) {
+            }
+
+            @Override
+            public void onBulkEnd() {
+            }
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public long decodeWhole() throws Exception {
+        decoder.decode(requests.duplicate());
+        return parsed;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public long decodeSegmented() throws Exception {
+        ByteBuffer data = requests.duplicate();
+        int end = data.limit();
+        while (data.position() < end) {
+            data.limit(Math.min(data.position() + SEGMENT_SIZE, end));
+            decoder.decode(data);
+        }
+        return parsed;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeResponseHeader() {
+        return new FrameBuilder(Constant.OP_PIECE).putString("共享文件-0.bin").putInt(0).putLong(Constant.PIECE_SIZE).build();
+    }
+}
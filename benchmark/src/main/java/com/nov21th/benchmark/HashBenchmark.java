@@ -0,0 +1,122 @@
+package com.nov21th.benchmark;
+
+import com.nov21th.common.Constant;
+import com.nov21th.util.MD5Util;
+import com.nov21th.util.MerkleTree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 比较计算共享文件校验码的各种方式：整个文件的MD5、单线程与并行计算的Merkle树，
+ * 以及校验单个下载块的耗时
+ * <p>
+ * 文件在页缓存中，结果反映摘要计算本身的开销。algorithm只影响Merkle树与单块校验。
+ * 用法：java -jar benchmarks.jar HashBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class HashBenchmark {
+
+    @Param({"256"})
+    private int sizeMB;
+
+    @Param({"MD5", "SHA-256"})
+    private String algorithm;
+
+    private File file;
+
+    private MerkleTree tree;
+
+    /**
+     * 只用一个工作线程计算的Merkle树，作为并行计算的对照
+     */
+    private MerkleTree sequentialTree;
+
+    private ForkJoinPool sequentialPool;
+
+    private byte[] piece;
+
+    /**
+     * 校验单块时使用的已公布摘要
+     */
+    private List<String> pieceHashes;
+
+    @Setup
+    public void setup() throws Exception {
+        Random random = new Random(0);
+        piece = new byte[Constant.PIECE_SIZE];
+        random.nextBytes(piece);
+
+        file = File.createTempFile("hash", ".bench");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            for (int i = 0; i < sizeMB; i++) {
+                raf.write(piece);
+            }
+        } finally {
+            raf.close();
+        }
+
+        tree = new MerkleTree(algorithm, Constant.PIECE_SIZE);
+        sequentialPool = new ForkJoinPool(1);
+        sequentialTree = new MerkleTree(algorithm, Constant.PIECE_SIZE, sequentialPool);
+        pieceHashes = new ArrayList<>();
+        pieceHashes.add(tree.hashBlock(ByteBuffer.wrap(piece)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        sequentialPool.shutdown();
+        file.delete();
+    }
+
+    @Benchmark
+    public String md5File() throws Exception {
+        return MD5Util.getMD5(file);
+    }
+
+    @Benchmark
+    public String merkleTreeSequential() throws Exception {
+        return sequentialTree.hash(file, new ArrayList<String>());
+    }
+
+    @Benchmark
+    public String merkleTree() throws Exception {
+        return tree.hash(file, new ArrayList<String>());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String md5Piece() throws Exception {
+        return MD5Util.getMD5(piece);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean verifyPiece() {
+        return tree.verifyBlock(0, ByteBuffer.wrap(piece), pieceHashes);
+    }
+}
@@ -0,0 +1,407 @@
+package com.nov21th.benchmark;
+
+import com.nov21th.common.Constant;
+import com.nov21th.metrics.MetricRegistry;
+import com.nov21th.tcp.codec.Frame;
+import com.nov21th.tcp.codec.FrameBuilder;
+import com.nov21th.tcp.codec.FrameCodec;
+import com.nov21th.tcp.file.FileTransferServer;
+import com.nov21th.tcp.p2p.CentralServer;
+import com.nov21th.util.IPUtil;
+import com.nov21th.util.MD5Util;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * 本地压力测试：模拟大量对等方并发地认证、共享文件、查询列表、下载文件与退出，统计各阶段的吞吐量与延迟分位数
+ * <p>
+ * 全部对等方完成一个阶段后才一同进入下一阶段，各阶段的吞吐量互不干扰。
+ * 默认在本进程内启动中央服务器，也可以指定已运行的中央服务器；文件传输服务器总在本进程内启动。
+ * 服务器的日志级别调为WARN，以免逐条请求的日志主导耗时；结束时输出进程内各服务器的运行指标。
+ * <p>
+ * 用法：java -cp benchmarks.jar com.nov21th.benchmark.LoadGenerator [对等方数] [每个对等方每阶段的请求数] [下载文件大小KB] [中央服务器地址:端口]
+ */
+public class LoadGenerator {
+
+    private static final String[] PHASES = {"connect", "add", "list", "fetch", "quit"};
+
+    private static final int CONNECT = 0;
+
+    private static final int ADD = 1;
+
+    private static final int LIST = 2;
+
+    private static final int FETCH = 3;
+
+    private static final int QUIT = 4;
+
+    private static final int LIST_PAGE_SIZE = 50;
+
+    /**
+     * 模拟的对等方在中央服务器登记的端口从此开始，各对等方依次递增，使拥有者标识互不相同
+     */
+    private static final int FIRST_PEER_PORT = 40000;
+
+    private static final int SOCKET_TIMEOUT = 30000;
+
+    private static final String FILE_NAME = "load.bin";
+
+    public static void main(String[] args) throws Exception {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        long fileSize = (args.length > 2 ? Long.parseLong(args[2]) : 1024) * 1024;
+
+        LogManager.getRootLogger().setLevel(Level.WARN);
+
+        StringBuilder metrics = new StringBuilder();
+        List<MetricRegistry> registries = new ArrayList<>();
+        InetSocketAddress central;
+        if (args.length > 3) {
+            central = IPUtil.parseAddress(args[3], 0);
+            if (central.getPort() == 0) {
+                throw new IllegalArgumentException("中央服务器地址须包含端口：" + args[3]);
+            }
+        } else {
+            int port = ReadBenchmark.freePort();
+            CentralServer server = new CentralServer(port);
+            server.setDaemon(true);
+            server.start();
+            registries.add(server.getMetrics());
+            central = new InetSocketAddress("127.0.0.1", port);
+        }
+
+        File repository = Files.createTempDirectory("load").toFile();
+        File file = new File(repository, FILE_NAME);
+        createFile(file, fileSize);
+
+        int filePort = ReadBenchmark.freePort();
+        FileTransferServer fileServer = new FileTransferServer(filePort, repository.getPath());
+        fileServer.setDaemon(true);
+        fileServer.start();
+        registries.add(fileServer.getMetrics());
+        InetSocketAddress files = new InetSocketAddress("127.0.0.1", filePort);
+
+        ReadBenchmark.connect(central).close();
+        ReadBenchmark.connect(files).close();
+
+        System.out.printf("%d个对等方，每阶段每个对等方%d个请求，下载文件%dKB，中央服务器：%s%n",
+                peers, requests, fileSize / 1024, central);
+
+        final long[] phaseTimes = new long[PHASES.length + 1];
+        final int[] phase = new int[1];
+        CyclicBarrier barrier = new CyclicBarrier(peers, new Runnable() {
+            @Override
+            public void run() {
+                phaseTimes[phase[0]++] = System.nanoTime();
+            }
+        });
+
+        SimulatedPeer[] simulated = new SimulatedPeer[peers];
+        Thread[] threads = new Thread[peers];
+        for (int i = 0; i < peers; i++) {
+            simulated[i] = new SimulatedPeer(i, requests, fileSize, central, files, barrier);
+            threads[i] = new Thread(simulated[i], "load-peer-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        System.out.printf("%-8s %8s %7s %10s %9s %9s %9s %9s %9s%n",
+                "phase", "ok", "failed", "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (int p = 0; p < PHASES.length; p++) {
+            Samples merged = new Samples();
+            int failed = 0;
+            for (SimulatedPeer peer : simulated) {
+                merged.addAll(peer.samples[p]);
+                failed += peer.failures[p];
+            }
+            double seconds = (phaseTimes[p + 1] - phaseTimes[p]) / 1e9;
+            System.out.printf("%-8s %8d %7d %10.0f %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+                    PHASES[p], merged.count, failed, merged.count / seconds,
+                    merged.percentile(50), merged.percentile(90), merged.percentile(99), merged.percentile(99.9),
+                    merged.percentile(100));
+            if (p == FETCH) {
+                System.out.printf("%-8s %.1f MB/s%n", "", merged.count * (double) fileSize / (1024 * 1024) / seconds);
+            }
+        }
+
+        for (MetricRegistry registry : registries) {
+            registry.writeTo(metrics);
+        }
+        System.out.println();
+        System.out.print(metrics);
+
+        file.delete();
+        repository.delete();
+        System.exit(0);
+    }
+
+    private static void createFile(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] block = new byte[1024 * 1024];
+            new Random(0).nextBytes(block);
+            for (long written = 0; written < size; written += block.length) {
+                raf.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 以阻塞连接依次发出各阶段请求的对等方，请求失败只计数，不影响后续阶段
+     */
+    private static class SimulatedPeer implements Runnable {
+
+        private final int index;
+
+        private final int requests;
+
+        private final long fileSize;
+
+        private final InetSocketAddress centralAddress;
+
+        private final InetSocketAddress fileAddress;
+
+        private final CyclicBarrier barrier;
+
+        private final Samples[] samples = new Samples[PHASES.length];
+
+        private final int[] failures = new int[PHASES.length];
+
+        private final Random random;
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        private Link central;
+
+        private Link files;
+
+        private SimulatedPeer(int index, int requests, long fileSize, InetSocketAddress centralAddress,
+                              InetSocketAddress fileAddress, CyclicBarrier barrier) {
+            this.index = index;
+            this.requests = requests;
+            this.fileSize = fileSize;
+            this.centralAddress = centralAddress;
+            this.fileAddress = fileAddress;
+            this.barrier = barrier;
+            this.random = new Random(index);
+            for (int i = 0; i < PHASES.length; i++) {
+                samples[i] = new Samples();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                try {
+                    central = new Link(centralAddress);
+                    files = new Link(fileAddress);
+                } catch (IOException e) {
+                    failures[CONNECT]++;
+                }
+
+                barrier.await();
+                perform(CONNECT, 1);
+                barrier.await();
+                perform(ADD, requests);
+                barrier.await();
+                perform(LIST, requests);
+                barrier.await();
+                perform(FETCH, requests);
+                barrier.await();
+                perform(QUIT, 1);
+                barrier.await();
+            } catch (InterruptedException | BrokenBarrierException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                if (central != null) {
+                    central.close();
+                }
+                if (files != null) {
+                    files.close();
+                }
+            }
+        }
+
+        private void perform(int phase, int count) {
+            for (int i = 0; i < count; i++) {
+                long start = System.nanoTime();
+                try {
+                    request(phase, i);
+                    samples[phase].add(System.nanoTime() - start);
+                } catch (Exception e) {
+                    failures[phase]++;
+                }
+            }
+        }
+
+        private void request(int phase, int seq) throws IOException {
+            switch (phase) {
+                case CONNECT:
+                    call(central, new FrameBuilder(Constant.OP_CONNECT).putInt(seq).putInt(FIRST_PEER_PORT + index),
+                            Constant.OP_ACCEPT);
+                    break;
+                case ADD:
+                    call(central, new FrameBuilder(Constant.OP_ADD).putInt(seq)
+                            .putString("load-" + index + "-" + seq)
+                            .putHash(randomHash())
+                            .putLong(fileSize)
+                            .putInt(1)
+                            .putHash(randomHash()), Constant.OP_OK);
+                    break;
+                case LIST:
+                    call(central, new FrameBuilder(Constant.OP_LIST).putInt(seq)
+                            .putString("")
+                            .putString("")
+                            .putHash("")
+                            .putLong(0)
+                            .putLong(Long.MAX_VALUE)
+                            .putInt(LIST_PAGE_SIZE)
+                            .putInt(0), Constant.OP_OK);
+                    break;
+                case FETCH:
+                    fetch();
+                    break;
+                case QUIT:
+                    call(central, new FrameBuilder(Constant.OP_QUIT).putInt(seq), Constant.OP_OK);
+                    break;
+                default:
+                    throw new IllegalArgumentException("未知的阶段：" + phase);
+            }
+        }
+
+        /**
+         * 请求整个文件并读完其内容
+         */
+        private void fetch() throws IOException {
+            Frame header = call(files, new FrameBuilder(Constant.OP_REQUEST)
+                    .putString(FILE_NAME)
+                    .putLong(0)
+                    .putLong(fileSize), Constant.OP_RANGE);
+            header.getString();
+            header.getLong();
+            long remaining = header.getLong();
+            if (remaining != fileSize) {
+                throw new IOException("文件长度不符：" + remaining);
+            }
+
+            while (remaining > 0) {
+                buffer.clear();
+                if (remaining < buffer.capacity()) {
+                    buffer.limit((int) remaining);
+                }
+                int n = files.in.read(buffer);
+                if (n < 0) {
+                    throw new IOException("连接已关闭");
+                }
+                remaining -= n;
+            }
+        }
+
+        private Frame call(Link link, FrameBuilder request, byte expected) throws IOException {
+            if (link == null) {
+                throw new IOException("未连接");
+            }
+            FrameCodec.writeFrame(link.out, request.build());
+            Frame response = FrameCodec.readFrame(link.in);
+            if (response == null || response.getOpcode() != expected) {
+                throw new IOException("意外的响应：" + (response == null ? "连接已关闭" : response.getOpcode()));
+            }
+            return response;
+        }
+
+        private String randomHash() {
+            byte[] bytes = new byte[16];
+            random.nextBytes(bytes);
+            return MD5Util.toHexString(bytes);
+        }
+    }
+
+    /**
+     * 带读超时的阻塞连接，服务器停止响应时请求以超时失败而不是一直等待
+     */
+    private static class Link {
+
+        private final Socket socket;
+
+        private final ReadableByteChannel in;
+
+        private final WritableByteChannel out;
+
+        private Link(InetSocketAddress address) throws IOException {
+            socket = new Socket();
+            socket.connect(address, SOCKET_TIMEOUT);
+            socket.setSoTimeout(SOCKET_TIMEOUT);
+            in = Channels.newChannel(socket.getInputStream());
+            out = Channels.newChannel(socket.getOutputStream());
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 延迟样本，单位为纳秒，输出时换算为毫秒
+     */
+    private static class Samples {
+
+        private long[] values = new long[64];
+
+        private int count;
+
+        private boolean sorted;
+
+        void add(long value) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = value;
+            sorted = false;
+        }
+
+        void addAll(Samples other) {
+            for (int i = 0; i < other.count; i++) {
+                add(other.values[i]);
+            }
+        }
+
+        /**
+         * 第p百分位的值（毫秒），没有样本时为0
+         */
+        double percentile(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            if (!sorted) {
+                Arrays.sort(values, 0, count);
+                sorted = true;
+            }
+            int rank = (int) Math.ceil(p / 100 * count) - 1;
+            return values[Math.max(0, Math.min(rank, count - 1))] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.nov21th.benchmark;
+
+import com.nov21th.common.Constant;
+import com.nov21th.tcp.Connection;
+import com.nov21th.tcp.FrameServer;
+import com.nov21th.tcp.codec.Frame;
+import com.nov21th.tcp.codec.FrameBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 服务器读路径的开销：客户端经本地回环连续发出一批帧，Reactor读出（TCPServer.read）并解码后计数，
+ * 全部收到后一次调用结束，结果为每帧的平均耗时
+ * <p>
+ * bufferSize为Reactor的读缓冲区大小，决定每帧需要几次read系统调用。
+ * 用法：java -jar benchmarks.jar ReadBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadBenchmark {
+
+    private static final int FRAMES = 1024;
+
+    @Param({"64", "4096"})
+    private int payloadSize;
+
+    @Param({"1024", "65536"})
+    private int bufferSize;
+
+    private CountingServer server;
+
+    private SocketChannel client;
+
+    private ByteBuffer batch;
+
+    private long expected;
+
+    @Setup
+    public void setup() throws Exception {
+        int port = freePort();
+        server = new CountingServer(port, bufferSize);
+        server.setReactorCount(1);
+        server.setDaemon(true);
+        server.start();
+        client = connect(new InetSocketAddress("127.0.0.1", port));
+
+        char[] padding = new char[payloadSize];
+        Arrays.fill(padding, 'x');
+        ByteBuffer frame = new FrameBuilder(Constant.OP_HEARTBEAT, payloadSize).putString(new String(padding)).build();
+        batch = ByteBuffer.allocateDirect(frame.remaining() * FRAMES);
+        for (int i = 0; i < FRAMES; i++) {
+            batch.put(frame.duplicate());
+        }
+        batch.flip();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long read() throws IOException {
+        ByteBuffer data = batch.duplicate();
+        while (data.hasRemaining()) {
+            client.write(data);
+        }
+
+        expected += FRAMES;
+        while (server.frames.get() < expected) {
+            Thread.yield();
+        }
+        return expected;
+    }
+
+    static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * 等待服务器开始监听后连接
+     */
+    static SocketChannel connect(InetSocketAddress address) throws Exception {
+        for (int i = 0; ; i++) {
+            try {
+                return SocketChannel.open(address);
+            } catch (IOException e) {
+                if (i >= 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * 只对收到的帧计数的服务器
+     */
+    private static class CountingServer extends FrameServer {
+
+        private final AtomicLong frames = new AtomicLong();
+
+        private CountingServer(int port, int bufferSize) {
+            super(port, bufferSize);
+        }
+
+        @Override
+        protected Logger getLogger() {
+            return LoggerFactory.getLogger(CountingServer.class);
+        }
+
+        @Override
+        protected void onFrame(Connection conn, Frame frame) {
+            frames.incrementAndGet();
+        }
+    }
+}
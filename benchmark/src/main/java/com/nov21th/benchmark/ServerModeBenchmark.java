@@ -0,0 +1,311 @@
+package com.nov21th.benchmark;
+
+import com.nov21th.common.Constant;
+import com.nov21th.tcp.ServerMode;
+import com.nov21th.tcp.codec.FrameBuilder;
+import com.nov21th.tcp.file.FileTransferServer;
+import com.nov21th.util.VirtualThreads;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 比较文件传输服务器在各{@link ServerMode}下同时处理大量连接时的吞吐量、延迟与资源占用
+ * <p>
+ * 客户端在单个选择器线程中分批建立全部连接，待服务器确认全部连入后同时开始：
+ * 每个连接依次发出若干个OP_REQUEST请求下载整个文件，收完一个响应再发出下一个。
+ * 每连接一个线程时，JVM支持虚拟线程（JDK 21及以上）则使用虚拟线程，否则使用平台线程。
+ * 客户端与服务器在同一进程中，文件描述符上限须大于连接数的两倍。
+ * <p>
+ * 用法：java -cp benchmarks.jar com.nov21th.benchmark.ServerModeBenchmark [连接数] [每个连接的请求数] [文件大小KB] [模式]
+ */
+public class ServerModeBenchmark {
+
+    private static final String FILE_NAME = "mode.bin";
+
+    /**
+     * 每批建立的连接数，服务器接受完一批后再建立下一批，避免超出服务器的连接队列
+     */
+    private static final int CONNECT_BATCH = 256;
+
+    private static final long TIMEOUT = 120000;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        long fileSize = (args.length > 2 ? Long.parseLong(args[2]) : 64) * 1024;
+        ServerMode[] modes = args.length > 3
+                ? new ServerMode[]{ServerMode.valueOf(args[3].toUpperCase())} : ServerMode.values();
+
+        LogManager.getRootLogger().setLevel(Level.WARN);
+
+        File repository = Files.createTempDirectory("mode").toFile();
+        File file = new File(repository, FILE_NAME);
+        createFile(file, fileSize);
+
+        System.out.printf("%d个连接，每个连接%d个请求，文件%dKB，虚拟线程：%s%n",
+                connections, requests, fileSize / 1024, VirtualThreads.isSupported() ? "支持" : "不支持");
+        System.out.printf("%-22s %9s %9s %9s %9s %9s %9s %8s %9s %9s%n", "mode", "connect s", "req/s", "MB/s",
+                "p50 ms", "p99 ms", "max ms", "threads", "heap MB", "CPU s");
+        try {
+            for (ServerMode mode : modes) {
+                run(mode, connections, requests, fileSize, repository);
+                System.gc();
+            }
+        } finally {
+            file.delete();
+            repository.delete();
+        }
+        System.exit(0);
+    }
+
+    private static void run(ServerMode mode, int connections, int requests, long fileSize, File repository)
+            throws Exception {
+        int port = ReadBenchmark.freePort();
+        FileTransferServer server = new FileTransferServer(port, repository.getPath());
+        server.setServerMode(mode);
+        server.setDaemon(true);
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        ReadBenchmark.connect(address).close();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+        Client client = new Client(address, connections, requests, fileSize);
+        long connectStart = System.nanoTime();
+        for (int opened = 0; opened < connections; opened += CONNECT_BATCH) {
+            int batch = Math.min(CONNECT_BATCH, connections - opened);
+            client.connect(batch);
+            while (server.getMetrics().values().get("connections.active") < opened + batch) {
+                Thread.sleep(1);
+            }
+        }
+        long connectTime = System.nanoTime() - connectStart;
+
+        long cpuStart = os.getProcessCpuTime();
+        long start = System.nanoTime();
+        client.transfer();
+        long elapsed = System.nanoTime() - start;
+        long cpu = os.getProcessCpuTime() - cpuStart;
+
+        // 在连接仍打开时记录资源占用
+        int threadCount = threads.getThreadCount();
+        long heap = memory.getHeapMemoryUsage().getUsed();
+        client.close();
+        // 等服务器关闭全部连接，释放文件描述符后再测试下一种模式
+        while (server.getMetrics().values().get("connections.active") > 0) {
+            Thread.sleep(10);
+        }
+
+        double seconds = elapsed / 1e9;
+        long total = (long) connections * requests;
+        System.out.printf("%-22s %9.2f %9.0f %9.1f %9.3f %9.3f %9.3f %8d %9d %9.2f%n",
+                mode, connectTime / 1e9, total / seconds, total * (double) fileSize / (1024 * 1024) / seconds,
+                client.percentile(50), client.percentile(99), client.percentile(100),
+                threadCount, heap / (1024 * 1024), cpu / 1e9);
+    }
+
+    private static void createFile(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] block = new byte[(int) Math.min(size, 1024 * 1024)];
+            new Random(0).nextBytes(block);
+            for (long written = 0; written < size; written += block.length) {
+                raf.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 在单个选择器线程中驱动全部连接，只统计收到的字节数，不解析响应
+     */
+    private static class Client {
+
+        private final InetSocketAddress address;
+
+        private final int connections;
+
+        private final int requests;
+
+        private final ByteBuffer request;
+
+        /**
+         * 每个响应的字节数：响应头加文件内容
+         */
+        private final long responseSize;
+
+        private final Selector selector;
+
+        private final List<Stream> streams = new ArrayList<>();
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        private final long[] latencies;
+
+        private int samples;
+
+        private Client(InetSocketAddress address, int connections, int requests, long fileSize) throws IOException {
+            this.address = address;
+            this.connections = connections;
+            this.requests = requests;
+            this.request = new FrameBuilder(Constant.OP_REQUEST).putString(FILE_NAME).putLong(0).putLong(fileSize).build();
+            this.responseSize = new FrameBuilder(Constant.OP_RANGE).putString(FILE_NAME).putLong(0).putLong(fileSize)
+                    .build().remaining() + fileSize;
+            this.selector = Selector.open();
+            this.latencies = new long[connections * requests];
+        }
+
+        /**
+         * 再建立count个连接，全部完成握手后返回
+         */
+        void connect(int count) throws IOException {
+            int pending = 0;
+            for (int i = 0; i < count; i++) {
+                SocketChannel sc = SocketChannel.open();
+                sc.configureBlocking(false);
+                Stream stream = new Stream(sc);
+                streams.add(stream);
+                if (sc.connect(address)) {
+                    sc.register(selector, 0, stream);
+                } else {
+                    sc.register(selector, SelectionKey.OP_CONNECT, stream);
+                    pending++;
+                }
+            }
+
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (pending > 0) {
+                select(deadline);
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (((SocketChannel) key.channel()).finishConnect()) {
+                        key.interestOps(0);
+                        pending--;
+                    }
+                }
+            }
+        }
+
+        void transfer() throws IOException {
+            for (Stream stream : streams) {
+                stream.send();
+            }
+
+            int finished = 0;
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (finished < connections) {
+                select(deadline);
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (((Stream) key.attachment()).receive()) {
+                        finished++;
+                    }
+                }
+            }
+        }
+
+        private void select(long deadline) throws IOException {
+            long timeout = deadline - System.currentTimeMillis();
+            if (timeout <= 0 || selector.select(timeout) == 0 && System.currentTimeMillis() >= deadline) {
+                throw new IOException("等待服务器超时");
+            }
+        }
+
+        void close() throws IOException {
+            for (Stream stream : streams) {
+                stream.channel.close();
+            }
+            selector.close();
+        }
+
+        /**
+         * 第p百分位的请求延迟（毫秒）
+         */
+        double percentile(double p) {
+            Arrays.sort(latencies, 0, samples);
+            int rank = (int) Math.ceil(p / 100 * samples) - 1;
+            return latencies[Math.max(0, Math.min(rank, samples - 1))] / 1e6;
+        }
+
+        private class Stream {
+
+            private final SocketChannel channel;
+
+            private long remaining;
+
+            private long sentAt;
+
+            private int completed;
+
+            private Stream(SocketChannel channel) {
+                this.channel = channel;
+            }
+
+            void send() throws IOException {
+                ByteBuffer data = request.duplicate();
+                sentAt = System.nanoTime();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                remaining = responseSize;
+                channel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+            }
+
+            /**
+             * 读出当前可读的数据，收完一个响应后发出下一个请求
+             *
+             * @return 本连接的全部请求均已完成时返回true
+             */
+            boolean receive() throws IOException {
+                while (true) {
+                    buffer.clear();
+                    if (remaining < buffer.capacity()) {
+                        buffer.limit((int) remaining);
+                    }
+                    int n = channel.read(buffer);
+                    if (n < 0) {
+                        throw new IOException("服务器关闭了连接");
+                    }
+                    if (n == 0) {
+                        return false;
+                    }
+                    remaining -= n;
+                    if (remaining == 0) {
+                        latencies[samples++] = System.nanoTime() - sentAt;
+                        if (++completed == requests) {
+                            channel.keyFor(selector).interestOps(0);
+                            return true;
+                        }
+                        send();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.nov21th.benchmark;
+
+import com.nov21th.common.Constant;
+import com.nov21th.tcp.codec.Frame;
+import com.nov21th.tcp.codec.FrameBuilder;
+import com.nov21th.tcp.codec.FrameCodec;
+import com.nov21th.tcp.file.FileTransferServer;
+import com.nov21th.tcp.file.TransferMode;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * 比较文件传输服务器以各{@link TransferMode}经本地回环发送文件的吞吐量与每GB消耗的CPU时间
+ * <p>
+ * 每种方式启动一个服务器，客户端在同一连接上逐次以OP_REQUEST请求整个文件并丢弃收到的数据。
+ * 服务器在Reactor线程中写出文件，CPU时间按整个进程统计，包含客户端接收的开销。
+ * 用法：java -cp benchmarks.jar com.nov21th.benchmark.TransferBenchmark [文件大小MB] [轮数]
+ */
+public class TransferBenchmark {
+
+    private static final String FILE_NAME = "transfer.bin";
+
+    private static final long MB = 1024 * 1024;
+
+    private static final long GB = 1024 * MB;
+
+    public static void main(String[] args) throws Exception {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 1024) * MB;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        LogManager.getRootLogger().setLevel(Level.WARN);
+
+        File repository = Files.createTempDirectory("transfer").toFile();
+        File file = new File(repository, FILE_NAME);
+        createFile(file, size);
+        try {
+            com.sun.management.OperatingSystemMXBean os =
+                    (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+            System.out.printf("%-14s %12s %16s%n", "mode", "MB/s", "CPU ms/GB");
+            for (TransferMode mode : TransferMode.values()) {
+                int port = ReadBenchmark.freePort();
+                FileTransferServer server = new FileTransferServer(port, repository.getPath());
+                server.setTransferMode(mode);
+                server.setDaemon(true);
+                server.start();
+
+                SocketChannel client = ReadBenchmark.connect(new InetSocketAddress("127.0.0.1", port));
+                try {
+                    // 预热一轮，不计入结果
+                    download(client, size);
+
+                    long elapsed = 0;
+                    long cpu = 0;
+                    for (int i = 0; i < rounds; i++) {
+                        long cpuStart = os.getProcessCpuTime();
+                        long start = System.nanoTime();
+                        download(client, size);
+                        elapsed += System.nanoTime() - start;
+                        cpu += os.getProcessCpuTime() - cpuStart;
+                    }
+
+                    double bytes = (double) size * rounds;
+                    double throughput = bytes / MB / (elapsed / 1e9);
+                    double cpuPerGB = cpu / 1e6 / (bytes / GB);
+                    System.out.printf("%-14s %12.1f %16.1f%n", mode, throughput, cpuPerGB);
+                } finally {
+                    client.close();
+                }
+            }
+        } finally {
+            file.delete();
+            repository.delete();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * 请求整个文件，读出响应头后接收并丢弃文件内容
+     */
+    private static void download(SocketChannel client, long size) throws IOException {
+        FrameCodec.writeFrame(client, new FrameBuilder(Constant.OP_REQUEST).putString(FILE_NAME).build());
+
+        Frame header = FrameCodec.readFrame(client);
+        if (header == null || header.getOpcode() != Constant.OP_FILE) {
+            throw new IOException("服务器的响应与请求不符");
+        }
+        long length = header.getLong();
+        if (length != size) {
+            throw new IOException("服务器声明的长度为" + length + "字节");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        long remaining = length;
+        while (remaining > 0) {
+            buffer.clear();
+            if (remaining < buffer.capacity()) {
+                buffer.limit((int) remaining);
+            }
+            int n = client.read(buffer);
+            if (n < 0) {
+                throw new IOException("接收方仅收到" + (length - remaining) + "字节");
+            }
+            remaining -= n;
+        }
+    }
+
+    private static void createFile(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] block = new byte[(int) MB];
+            new Random(0).nextBytes(block);
+            for (long written = 0; written < size; written += block.length) {
+                raf.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        } finally {
+            raf.close();
+        }
+    }
+}
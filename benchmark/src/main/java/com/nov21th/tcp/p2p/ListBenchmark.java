@@ -0,0 +1,102 @@
+package com.nov21th.tcp.p2p;
+
+import com.nov21th.common.Constant;
+import com.nov21th.tcp.codec.FrameBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 中央服务器处理LIST请求的开销：在文件索引中查询一页文件，以及将该页序列化为响应（CentralServer.putPage）
+ * <p>
+ * 与中央服务器同包，以便直接使用包内的索引与序列化方法。
+ * 用法：java -jar benchmarks.jar ListBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListBenchmark {
+
+    @Param({"100000"})
+    private int files;
+
+    @Param({"50", "1000"})
+    private int pageSize;
+
+    @Param({"4"})
+    private int owners;
+
+    @Param({"16"})
+    private int pieces;
+
+    private FileIndex index;
+
+    private ListQuery firstPage;
+
+    private ListQuery filtered;
+
+    private FileIndex.Page page;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        index = new FileIndex(new ChangeLog(1024));
+        for (int i = 0; i < files; i++) {
+            FileInfo info = new FileInfo("共享文件-" + i + ".bin", randomHash(random), random.nextLong() & Long.MAX_VALUE);
+            List<String> pieceHashes = new ArrayList<>();
+            for (int j = 0; j < pieces; j++) {
+                pieceHashes.add(randomHash(random));
+            }
+            info.setPieceHashes(pieceHashes);
+            for (int j = 0; j < owners; j++) {
+                index.add(info, "192.168." + random.nextInt(256) + "." + random.nextInt(256) + ":" + Constant.DEFAULT_PEER_PORT);
+            }
+        }
+
+        firstPage = new ListQuery().setLimit(pageSize);
+        filtered = new ListQuery().setLimit(pageSize).setContains("7");
+        page = index.query(firstPage, pageSize, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public FileIndex.Page query() {
+        return index.query(firstPage, pageSize, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public FileIndex.Page queryFiltered() {
+        return index.query(filtered, pageSize, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public ByteBuffer serialize() {
+        FrameBuilder response = new FrameBuilder(Constant.OP_OK, page.files.size() * 64).putInt(0);
+        CentralServer.putPage(response, page);
+        return response.build();
+    }
+
+    private static String randomHash(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 32; i++) {
+            sb.append(Character.forDigit(random.nextInt(16), 16));
+        }
+        return sb.toString();
+    }
+}
@@ -25,4 +25,114 @@ public abstract class Constant {
     public static final String CMD_OK = "ok";
 
     public static final String CMD_FILE = "file";
+
+    public static final String CMD_ADD_ALL = "addall";
+
+    public static final String CMD_GET = "get";
+
+    public static final String CMD_LIMIT = "limit";
+
+    /*
+     * 以下为二进制协议中各消息的操作码，帧格式见com.nov21th.tcp.codec.Frame
+     * 发往中央服务器的请求及其响应的负载均以请求号（int）开头，下文不再列出
+     */
+
+    /**
+     * 与中央服务器或对等方进行身份认证；发往中央服务器时带有本对等方接受文件请求的端口（int），
+     * 中央服务器以"IP:端口"作为该对等方的标识，即文件列表中的拥有者
+     */
+    public static final byte OP_CONNECT = 1;
+
+    /**
+     * 认证成功；中央服务器的响应中带有租约时长（int，毫秒）
+     */
+    public static final byte OP_ACCEPT = 2;
+
+    /**
+     * 共享文件：文件名、校验码、大小（long）、块数（int）、各块摘要
+     * 校验码为各块摘要构成的Merkle树的根，见com.nov21th.util.MerkleTree
+     */
+    public static final byte OP_ADD = 3;
+
+    /**
+     * 按条件分页查询共享文件列表，查询条件的编码见com.nov21th.tcp.p2p.ListQuery
+     * 响应为OP_OK：文件数（int），每个文件的文件名、校验码、大小（long）、拥有者数（int）、各拥有者、块数（int）、各块摘要，
+     * 其后为是否还有下一页（int，0或1），有则跟随下一页的游标
+     */
+    public static final byte OP_LIST = 4;
+
+    /**
+     * 退出P2P网络，无负载，中央服务器以OP_OK响应
+     */
+    public static final byte OP_QUIT = 5;
+
+    /**
+     * 请求成功，负载视请求而定
+     */
+    public static final byte OP_OK = 6;
+
+    /**
+     * 请求失败：原因
+     */
+    public static final byte OP_ERROR = 7;
+
+    /**
+     * 向对等方请求文件：文件名，可选的起始位置（long）与长度（long）
+     * 对等方经由同一连接按请求的顺序以OP_FILE或OP_RANGE响应，文件不存在时以OP_ERROR响应
+     */
+    public static final byte OP_REQUEST = 8;
+
+    /**
+     * 完整的文件：长度（long），其后紧跟文件内容
+     */
+    public static final byte OP_FILE = 9;
+
+    /**
+     * 文件中的一段：文件名、起始位置（long）、长度（long），其后紧跟该段内容
+     */
+    public static final byte OP_RANGE = 10;
+
+    /**
+     * 向对等方请求文件块：文件名、块序号（int），对等方经由同一连接以OP_PIECE或OP_ERROR响应
+     */
+    public static final byte OP_FETCH = 11;
+
+    /**
+     * 文件块：文件名、块序号（int）、长度（long），其后紧跟块内容
+     */
+    public static final byte OP_PIECE = 12;
+
+    /**
+     * 一次共享多个文件：文件数（int），其后每个文件的字段同OP_ADD，中央服务器以OP_OK及文件数（int）响应
+     */
+    public static final byte OP_ADD_ALL = 13;
+
+    /**
+     * 同步共享文件目录：对等方已知的版本号（long）
+     * 响应为OP_OK：新的版本号（long）、是否需要重新获取完整列表（int，0或1），
+     * 不需要时其后为变更数（int）、各变更（是否为共享（int，0或1）、拥有者、文件名、校验码、大小（long），
+     * 共享时还有块数（int）与各块摘要），以及是否还有更多变更（int，0或1）
+     */
+    public static final byte OP_SYNC = 14;
+
+    /**
+     * 向中央服务器续约，无负载，中央服务器以OP_OK、租约时长（int，毫秒）及其记录的该对等方共享的文件数（int）响应
+     * 对等方的任何请求均会续约，租约到期的对等方被视为已退出
+     */
+    public static final byte OP_HEARTBEAT = 15;
+
+    /**
+     * 对等方接受文件请求的默认端口
+     */
+    public static final int DEFAULT_PEER_PORT = 12345;
+
+    /**
+     * 文件分块大小，每块的摘要在共享文件时一并公布
+     */
+    public static final int PIECE_SIZE = 1024 * 1024;
+
+    /**
+     * 计算文件校验码的默认摘要算法，同一网络中的对等方须使用相同的算法
+     */
+    public static final String DEFAULT_HASH_ALGORITHM = "MD5";
 }
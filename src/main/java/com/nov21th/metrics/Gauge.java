@@ -0,0 +1,9 @@
+package com.nov21th.metrics;
+
+/**
+ * 读取时才计算的指标，如连接数、目录中的文件数
+ */
+public interface Gauge {
+
+    long getValue();
+}
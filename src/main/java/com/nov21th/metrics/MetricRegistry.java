@@ -0,0 +1,102 @@
+package com.nov21th.metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * 一个服务器的全部指标，按名称排序
+ * <p>
+ * 指标在热点路径上只做计数，读取时才汇总：计数器与即时值各对应一项，
+ * 直方图展开为次数、平均值、P50、P90、P99与最大值（微秒）。
+ * 可注册为JMX MBean，也可以由{@link MetricsEndpoint}以文本形式输出。
+ */
+public class MetricRegistry {
+
+    private final String name;
+
+    /**
+     * {@link Counter}、{@link Histogram}或{@link Gauge}
+     */
+    private final ConcurrentMap<String, Object> metrics = new ConcurrentSkipListMap<>();
+
+    public MetricRegistry(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Counter counter(String name) {
+        return register(name, Counter.class, new Counter());
+    }
+
+    public Histogram histogram(String name) {
+        return register(name, Histogram.class, new Histogram());
+    }
+
+    public void gauge(String name, Gauge gauge) {
+        register(name, Gauge.class, gauge);
+    }
+
+    /**
+     * 同名指标已存在时返回已有的指标
+     */
+    private <T> T register(String name, Class<T> type, T metric) {
+        Object existing = metrics.putIfAbsent(name, metric);
+        if (existing == null) {
+            return metric;
+        }
+        if (!type.isInstance(existing)) {
+            throw new IllegalArgumentException("指标" + name + "已注册为其他类型");
+        }
+        return type.cast(existing);
+    }
+
+    /**
+     * 各指标的当前值，直方图展开为多项
+     */
+    public Map<String, Long> values() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            String key = entry.getKey();
+            Object metric = entry.getValue();
+            if (metric instanceof Counter) {
+                values.put(key, ((Counter) metric).get());
+            } else if (metric instanceof Gauge) {
+                values.put(key, ((Gauge) metric).getValue());
+            } else {
+                Histogram.Snapshot snapshot = ((Histogram) metric).snapshot();
+                values.put(key + ".count", snapshot.getCount());
+                values.put(key + ".mean_us", snapshot.getMean() / 1000);
+                values.put(key + ".p50_us", snapshot.getPercentile(0.5) / 1000);
+                values.put(key + ".p90_us", snapshot.getPercentile(0.9) / 1000);
+                values.put(key + ".p99_us", snapshot.getPercentile(0.99) / 1000);
+                values.put(key + ".max_us", snapshot.getMax() / 1000);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 以"名称.指标 值"的形式每行输出一项
+     */
+    public void writeTo(StringBuilder out) {
+        out.append("# ").append(name).append('\n');
+        for (Map.Entry<String, Long> entry : values().entrySet()) {
+            out.append(name).append('.').append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+    }
+
+    /**
+     * 注册到平台MBean服务器，各指标为只读属性
+     */
+    public void registerMBean(ObjectName objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this), objectName);
+    }
+}
@@ -0,0 +1,88 @@
+package com.nov21th.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 以纯文本输出指标的本地HTTP端点，GET /metrics 返回各{@link MetricRegistry}的全部指标
+ * <p>
+ * 只监听本机回环地址，在单独的守护线程中响应，不占用服务器的线程。
+ */
+public class MetricsEndpoint {
+
+    public static final String PATH = "/metrics";
+
+    private final int port;
+
+    private final List<MetricRegistry> registries = new CopyOnWriteArrayList<>();
+
+    private HttpServer server;
+
+    public MetricsEndpoint(int port) {
+        this.port = port;
+    }
+
+    public void add(MetricRegistry registry) {
+        registries.add(registry);
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "metrics-endpoint");
+                t.setDaemon(true);
+                return t;
+            }
+        }));
+        server.start();
+    }
+
+    /**
+     * 实际监听的端口，构造时传入0则由系统分配
+     */
+    public int getPort() {
+        return server == null ? port : server.getAddress().getPort();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    public String render() {
+        StringBuilder out = new StringBuilder();
+        for (MetricRegistry registry : registries) {
+            registry.writeTo(out);
+        }
+        return out.toString();
+    }
+}
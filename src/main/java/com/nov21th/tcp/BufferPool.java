@@ -0,0 +1,60 @@
+package com.nov21th.tcp;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 固定大小的直接缓冲区池，缓冲区在连接之间复用，避免反复分配堆外内存
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+
+    private final int maxPooled;
+
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * @param bufferSize 缓冲区大小
+     * @param maxPooled  池中最多保留的空闲缓冲区数，超出的归还后交由GC回收
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * 取出一个已清空的缓冲区
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 归还由{@link #acquire()}取出的缓冲区，其他缓冲区将被忽略
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        pool.offer(buffer);
+    }
+}
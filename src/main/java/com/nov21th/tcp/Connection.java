@@ -0,0 +1,472 @@
+package com.nov21th.tcp;
+
+import com.nov21th.tcp.codec.FrameDecoder;
+import com.nov21th.util.IPUtil;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 一个对等方连接及其全部状态，由所属的{@link Reactor}负责读写
+ * <p>
+ * 写操作可在任意线程中进行：数据先尝试直接写出，写不完的部分排队，
+ * 待套接字可写时由Reactor继续写出。文件以{@link FileRegion}排队，同样由Reactor写出。
+ * <p>
+ * 服务器以{@link ServerMode#THREAD_PER_CONNECTION}运行时连接不属于任何Reactor，
+ * 套接字为阻塞模式，写操作在调用线程中写完才返回。
+ */
+public class Connection {
+
+    /**
+     * 连接所处的阶段
+     */
+    public enum Phase {
+        /**
+         * 正在接收对等方的数据
+         */
+        READING,
+        /**
+         * 对等方数据已接收完毕，正在处理
+         */
+        HANDLING,
+        /**
+         * 等待排队的数据发送完毕后关闭
+         */
+        CLOSING,
+        CLOSED
+    }
+
+    private final SocketChannel channel;
+
+    /**
+     * 每连接一个线程时为null
+     */
+    private final SelectionKey key;
+
+    private final Reactor reactor;
+
+    private final TCPServer server;
+
+    private final BufferPool bufferPool;
+
+    /**
+     * 每连接一个线程时保证写操作互斥，不使用对象锁，以免虚拟线程在阻塞写时占住载体线程
+     */
+    private final ReentrantLock writeLock;
+
+    private final SocketAddress remoteAddress;
+
+    private final String remoteIP;
+
+    private final long connectedAt = System.currentTimeMillis();
+
+    private volatile long lastReadAt = connectedAt;
+
+    private volatile Phase phase = Phase.READING;
+
+    /**
+     * 排队待发送的{@link ByteBuffer}或{@link FileRegion}
+     */
+    private final Deque<Object> writeQueue = new ArrayDeque<>();
+
+    /**
+     * 待在处理线程池中依次执行的任务，保证同一连接上的请求按到达顺序处理
+     */
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+    private boolean running;
+
+    private volatile boolean closing;
+
+    private volatile Object attachment;
+
+    /**
+     * 默认实现下缓存接收到的数据，取自缓冲区池，连接关闭时归还
+     */
+    private ByteBuffer inbound;
+
+    long received;
+
+    /**
+     * 由{@link FrameServer}使用的帧解码器
+     */
+    FrameDecoder decoder;
+
+    Connection(SocketChannel channel, SelectionKey key, Reactor reactor) throws IOException {
+        this.channel = channel;
+        this.key = key;
+        this.reactor = reactor;
+        this.server = reactor.getServer();
+        this.bufferPool = reactor.getBufferPool();
+        this.writeLock = null;
+        this.remoteAddress = channel.getRemoteAddress();
+        this.remoteIP = IPUtil.extractIP(remoteAddress);
+    }
+
+    /**
+     * 每连接一个线程时使用，channel为阻塞模式
+     */
+    Connection(SocketChannel channel, TCPServer server, BufferPool bufferPool) throws IOException {
+        this.channel = channel;
+        this.key = null;
+        this.reactor = null;
+        this.server = server;
+        this.bufferPool = bufferPool;
+        this.writeLock = new ReentrantLock();
+        this.remoteAddress = channel.getRemoteAddress();
+        this.remoteIP = IPUtil.extractIP(remoteAddress);
+    }
+
+    public SocketChannel channel() {
+        return channel;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * 对等方的IP，在连接建立时解析一次
+     */
+    public String getRemoteIP() {
+        return remoteIP;
+    }
+
+    public long getConnectedAt() {
+        return connectedAt;
+    }
+
+    public long getLastReadAt() {
+        return lastReadAt;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * 子类保存在连接上的状态
+     */
+    public Object attachment() {
+        return attachment;
+    }
+
+    public void attach(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * 向对等方发送数据，调用后data归连接所有，调用方不应再修改
+     */
+    public void write(ByteBuffer data) throws IOException {
+        enqueue(data);
+    }
+
+    /**
+     * 在此前排队的数据之后发送文件中的一段，调用后region归连接所有，发送完毕或连接关闭时关闭文件
+     */
+    public void write(FileRegion region) throws IOException {
+        try {
+            enqueue(region);
+        } catch (Throwable e) {
+            // 任何异常都可能使区域无法再被写出，须在此关闭，否则文件与上传名额不会归还
+            region.close();
+            throw e;
+        }
+    }
+
+    private void enqueue(Object item) throws IOException {
+        if (reactor == null) {
+            writeBlocking(item);
+            return;
+        }
+
+        synchronized (this) {
+            if (closing || !channel.isOpen()) {
+                throw new ClosedChannelException();
+            }
+
+            if (writeQueue.isEmpty() && writeItem(item)) {
+                return;
+            }
+            writeQueue.add(item);
+        }
+
+        reactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                addInterest(SelectionKey.OP_WRITE);
+            }
+        });
+    }
+
+    /**
+     * 关注ops事件，连接可能随时在其他线程中关闭，选择键已取消时忽略
+     */
+    private void addInterest(int ops) {
+        try {
+            key.interestOps(key.interestOps() | ops);
+        } catch (CancelledKeyException ignored) {
+        }
+    }
+
+    /**
+     * 不再关注ops事件，选择键已取消时忽略
+     */
+    private void removeInterest(int ops) {
+        try {
+            key.interestOps(key.interestOps() & ~ops);
+        } catch (CancelledKeyException ignored) {
+        }
+    }
+
+    /**
+     * 每连接一个线程时在调用线程中写出item，受到限速时等待，写完才返回
+     */
+    private void writeBlocking(Object item) throws IOException {
+        writeLock.lock();
+        try {
+            if (closing || !channel.isOpen()) {
+                throw new ClosedChannelException();
+            }
+
+            while (!writeItem(item)) {
+                if (item instanceof FileRegion) {
+                    LockSupport.parkNanos(((FileRegion) item).getThrottleDelay());
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 尽量写出item
+     *
+     * @return 全部写出时返回true
+     */
+    private boolean writeItem(Object item) throws IOException {
+        if (item instanceof FileRegion) {
+            FileRegion region = (FileRegion) item;
+            long before = region.getSent();
+            try {
+                return region.writeTo(channel);
+            } finally {
+                server.bytesOut.add(region.getSent() - before);
+            }
+        }
+
+        ByteBuffer data = (ByteBuffer) item;
+        server.bytesOut.add(channel.write(data));
+        return !data.hasRemaining();
+    }
+
+    /**
+     * 待已排队的数据全部发送后关闭连接
+     */
+    public void close() {
+        synchronized (this) {
+            closing = true;
+            if (phase != Phase.CLOSED) {
+                phase = Phase.CLOSING;
+            }
+            if (!writeQueue.isEmpty()) {
+                return;
+            }
+        }
+        closeNow();
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * 是否以每连接一个线程的方式处理，此时连接上的任务直接在该线程中执行
+     */
+    boolean isBlocking() {
+        return reactor == null;
+    }
+
+    /**
+     * 套接字可写时由Reactor调用，继续写出排队的数据
+     */
+    void flush() throws IOException {
+        boolean close;
+        synchronized (this) {
+            while (!writeQueue.isEmpty()) {
+                Object item = writeQueue.peek();
+                if (!writeItem(item)) {
+                    if (item instanceof FileRegion) {
+                        throttle(((FileRegion) item).getThrottleDelay());
+                    }
+                    return;
+                }
+                writeQueue.poll();
+            }
+
+            removeInterest(SelectionKey.OP_WRITE);
+            close = closing;
+        }
+
+        if (close) {
+            closeNow();
+        }
+    }
+
+    /**
+     * 发送受到限速时暂不关注写事件，delayNanos纳秒后恢复；delayNanos为0时不做处理
+     */
+    private void throttle(long delayNanos) {
+        if (delayNanos <= 0) {
+            return;
+        }
+
+        removeInterest(SelectionKey.OP_WRITE);
+        reactor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                addInterest(SelectionKey.OP_WRITE);
+            }
+        }, delayNanos);
+    }
+
+    /**
+     * 在executor中执行task，同一连接的任务依次执行，不会并发
+     */
+    void execute(Runnable task, Executor executor) {
+        synchronized (tasks) {
+            tasks.add(task);
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean drained = false;
+                try {
+                    while (true) {
+                        Runnable next;
+                        synchronized (tasks) {
+                            next = tasks.poll();
+                            if (next == null) {
+                                running = false;
+                                drained = true;
+                                return;
+                            }
+                        }
+                        runTask(next);
+                    }
+                } finally {
+                    // 正常退出时running已在取任务时复位，此后可能已有新的线程接手，这里只处理意外退出
+                    if (!drained) {
+                        synchronized (tasks) {
+                            running = false;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 单个任务失败不应影响同一连接上之后的任务，也不应使处理线程退出
+     */
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable e) {
+            server.logger.error("处理来自" + remoteIP + "的请求时发生异常", e);
+        }
+    }
+
+    /**
+     * 对等方已关闭输出，不再关注读事件
+     */
+    void stopReading() {
+        phase = Phase.HANDLING;
+        if (key != null) {
+            removeInterest(SelectionKey.OP_READ);
+        }
+    }
+
+    void touch(long now) {
+        lastReadAt = now;
+    }
+
+    /**
+     * 将chunk中剩余的数据追加到接收缓存中，超出池中缓冲区大小时改用更大的堆内缓冲区
+     */
+    synchronized void appendInbound(ByteBuffer chunk) {
+        if (inbound == null) {
+            inbound = bufferPool.acquire();
+        }
+        if (inbound.remaining() < chunk.remaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(inbound.capacity() * 2, inbound.position() + chunk.remaining()));
+            inbound.flip();
+            bigger.put(inbound);
+            bufferPool.release(inbound);
+            inbound = bigger;
+        }
+        inbound.put(chunk);
+    }
+
+    /**
+     * 接收缓存中的全部数据
+     */
+    synchronized byte[] inboundBytes() {
+        if (inbound == null) {
+            return new byte[0];
+        }
+        byte[] data = new byte[inbound.position()];
+        inbound.flip();
+        inbound.get(data);
+        inbound.clear();
+        return data;
+    }
+
+    synchronized void closeNow() {
+        if (phase != Phase.CLOSED) {
+            server.closedConnections.inc();
+        }
+        phase = Phase.CLOSED;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        if (key != null) {
+            key.cancel();
+            reactor.wakeup();
+        }
+
+        for (Object item : writeQueue) {
+            if (item instanceof FileRegion) {
+                ((FileRegion) item).close();
+            }
+        }
+        writeQueue.clear();
+
+        if (inbound != null) {
+            bufferPool.release(inbound);
+            inbound = null;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.nov21th.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 文件中待发送的一段，排入{@link Connection}的发送队列后，由Reactor在套接字可写时逐步写出，
+ * 发送期间不占用处理线程。发送完毕或连接关闭时关闭文件。
+ * <p>
+ * 可以限制每轮写出的字节数，用完后让出Reactor，使同一Reactor上的各连接轮流发送；
+ * 也可以指定若干{@link TokenBucket}限制发送速率，令牌不足时暂停发送，到时由Reactor恢复。
+ * <p>
+ * 设置了{@link BufferPool}时，{@link FileChannel#transferTo}出错（部分平台或通道组合不支持）
+ * 即从池中取出直接缓冲区，改为经由缓冲区读写，关闭时将缓冲区归还。
+ */
+public class FileRegion {
+
+    private static final TokenBucket[] NO_LIMITS = new TokenBucket[0];
+
+    /**
+     * 限速时每次至少等到可以发送该数量的字节，避免频繁地发送小块数据
+     */
+    private static final long MIN_GRANT = 8 * 1024;
+
+    private final FileChannel file;
+
+    private long position;
+
+    /**
+     * 尚未从文件中读出的字节数
+     */
+    private long remaining;
+
+    /**
+     * 不为null时经由该缓冲区读写，否则使用{@link FileChannel#transferTo}直接发送
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * 不为null时，transferTo出错后从中取出缓冲区，关闭时归还
+     */
+    private BufferPool pool;
+
+    private long quantum;
+
+    private TokenBucket[] limits = NO_LIMITS;
+
+    /**
+     * 因令牌不足而暂停时，距离可以继续发送的纳秒数
+     */
+    private long throttleDelay;
+
+    /**
+     * 已写出的字节数
+     */
+    private long sent;
+
+    private Runnable closeListener;
+
+    private boolean closed;
+
+    /**
+     * 使用{@link FileChannel#transferTo}发送文件中从position开始的count个字节
+     */
+    public FileRegion(FileChannel file, long position, long count) {
+        this(file, position, count, null);
+    }
+
+    /**
+     * @param buffer 经由该缓冲区读写，为null时使用{@link FileChannel#transferTo}
+     */
+    public FileRegion(FileChannel file, long position, long count, ByteBuffer buffer) {
+        this.file = file;
+        this.position = position;
+        this.remaining = count;
+        this.buffer = buffer;
+        if (buffer != null) {
+            buffer.clear().limit(0);
+        }
+    }
+
+    /**
+     * 设置每轮最多写出的字节数，不大于0时不限
+     */
+    public void setQuantum(long quantum) {
+        this.quantum = quantum;
+    }
+
+    /**
+     * 设置限制发送速率的令牌桶，须同时满足全部令牌桶
+     */
+    public void setRateLimits(TokenBucket... limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * 设置transferTo出错时改用的缓冲区池，构造时传入的缓冲区取自该池时，关闭时同样归还
+     */
+    public void setBufferPool(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * 设置文件关闭（发送完毕或连接关闭）时执行的回调，在关闭文件的线程中执行
+     */
+    public void setCloseListener(Runnable closeListener) {
+        this.closeListener = closeListener;
+    }
+
+    /**
+     * 尽量写出剩余的数据，套接字写满、本轮额度用完或令牌不足时返回
+     *
+     * @return 全部写出时返回true，此时文件已关闭
+     */
+    boolean writeTo(SocketChannel channel) throws IOException {
+        throttleDelay = 0;
+        long budget = quantum > 0 ? quantum : Long.MAX_VALUE;
+
+        while (true) {
+            long pending;
+            if (buffer == null) {
+                pending = remaining;
+            } else {
+                if (!buffer.hasRemaining() && remaining > 0) {
+                    fill();
+                }
+                pending = buffer.remaining();
+            }
+            if (pending == 0) {
+                break;
+            }
+            if (budget == 0) {
+                return false;
+            }
+
+            long allowed = acquire(Math.min(pending, budget));
+            if (allowed == 0) {
+                return false;
+            }
+
+            long n;
+            if (buffer == null) {
+                try {
+                    n = transfer(channel, allowed);
+                } catch (IOException e) {
+                    if (pool == null || !channel.isOpen()) {
+                        throw e;
+                    }
+                    // 改为经由直接缓冲区读写，若为连接本身的错误，写入时将再次出错
+                    buffer = pool.acquire();
+                    buffer.limit(0);
+                    continue;
+                }
+            } else {
+                n = write(channel, allowed);
+            }
+            for (TokenBucket limit : limits) {
+                limit.consume(n);
+            }
+            budget -= n;
+            sent += n;
+            if (n < allowed) {
+                return false;
+            }
+        }
+
+        close();
+        return true;
+    }
+
+    /**
+     * 上次{@link #writeTo}因令牌不足而返回时，距离可以继续发送的纳秒数，否则为0
+     */
+    long getThrottleDelay() {
+        return throttleDelay;
+    }
+
+    long getSent() {
+        return sent;
+    }
+
+    /**
+     * 发送完毕时在Reactor线程中调用，连接关闭时可能在其他线程中调用，因此加锁以免重复归还缓冲区
+     */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        for (TokenBucket limit : limits) {
+            limit.cancel(this);
+        }
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
+        if (pool != null) {
+            pool.release(buffer);
+        }
+        if (closeListener != null) {
+            closeListener.run();
+        }
+    }
+
+    /**
+     * 按令牌桶的余量确定本次可以发送的字节数
+     * 余量不足时在不足的令牌桶中排队，记录需等待的时间并返回0；
+     * 在其余令牌桶中不占位置，以免因一个令牌桶不足而阻塞共用其余令牌桶的各方
+     */
+    private long acquire(long wanted) {
+        if (limits.length == 0) {
+            return wanted;
+        }
+
+        long now = System.nanoTime();
+        long least = Math.min(wanted, MIN_GRANT);
+        long allowed = wanted;
+        long delay = 0;
+        for (TokenBucket limit : limits) {
+            long available = limit.available(this, now);
+            if (available < least) {
+                delay = Math.max(delay, limit.await(this, least, now));
+            }
+            allowed = Math.min(allowed, available);
+        }
+
+        if (delay == 0) {
+            for (TokenBucket limit : limits) {
+                limit.cancel(this);
+            }
+            return allowed;
+        }
+
+        for (TokenBucket limit : limits) {
+            if (limit.available(this, now) >= least) {
+                limit.cancel(this);
+            }
+        }
+        throttleDelay = delay;
+        return 0;
+    }
+
+    private long transfer(SocketChannel channel, long count) throws IOException {
+        long n = file.transferTo(position, count, channel);
+        if (n == 0 && position >= file.size()) {
+            throw new IOException("文件长度不足");
+        }
+        position += n;
+        remaining -= n;
+        return n;
+    }
+
+    private long write(SocketChannel channel, long count) throws IOException {
+        int limit = buffer.limit();
+        if (count < buffer.remaining()) {
+            buffer.limit(buffer.position() + (int) count);
+        }
+        int n = channel.write(buffer);
+        buffer.limit(limit);
+        return n;
+    }
+
+    private void fill() throws IOException {
+        buffer.clear();
+        if (remaining < buffer.capacity()) {
+            buffer.limit((int) remaining);
+        }
+        int n = file.read(buffer, position);
+        if (n == -1) {
+            throw new IOException("文件长度不足");
+        }
+        buffer.flip();
+        position += n;
+        remaining -= n;
+    }
+}
@@ -0,0 +1,118 @@
+package com.nov21th.tcp;
+
+import com.nov21th.tcp.codec.Frame;
+import com.nov21th.tcp.codec.FrameCodec;
+import com.nov21th.tcp.codec.FrameDecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 以{@link Frame}为单位收发消息的TCP服务器，同一连接上可以先后传输多条消息
+ * <p>
+ * 帧在Reactor线程中解码后回调{@link #onFrame(Connection, Frame)}，
+ * 耗时的处理应通过{@link #execute(Connection, Runnable)}交给处理线程池。
+ */
+public abstract class FrameServer extends TCPServer {
+
+    public FrameServer(int port) {
+        super(port);
+    }
+
+    public FrameServer(int port, int bufferSize) {
+        super(port, bufferSize);
+    }
+
+    @Override
+    protected void onStreamStart(final Connection conn) throws Exception {
+        conn.decoder = new FrameDecoder(new FrameDecoder.Handler() {
+            @Override
+            public void onFrame(Frame frame) throws Exception {
+                FrameServer.this.onFrame(conn, frame);
+            }
+
+            @Override
+            public void onBulkData(ByteBuffer chunk) throws Exception {
+                FrameServer.this.onBulkData(conn, chunk);
+            }
+
+            @Override
+            public void onBulkEnd() throws Exception {
+                FrameServer.this.onBulkEnd(conn, true);
+            }
+        }, new FrameDecoder.LengthLimit() {
+            @Override
+            public int getMaxFrameLength(byte opcode) {
+                return FrameServer.this.getMaxFrameLength(opcode);
+            }
+        });
+
+        onConnected(conn);
+    }
+
+    @Override
+    protected void onDataChunk(Connection conn, ByteBuffer chunk) throws Exception {
+        conn.decoder.decode(chunk);
+    }
+
+    @Override
+    protected void onStreamEnd(Connection conn) throws Exception {
+        if (conn.decoder.isInBulk()) {
+            onBulkEnd(conn, false);
+        }
+        onDisconnected(conn);
+    }
+
+    /**
+     * 允许接收的操作码为opcode的帧的最大负载长度，超出时关闭连接
+     */
+    protected int getMaxFrameLength(byte opcode) {
+        return FrameCodec.DEFAULT_MAX_FRAME_LENGTH;
+    }
+
+    /**
+     * 向对等方发送一个由{@link com.nov21th.tcp.codec.FrameBuilder}编码的帧
+     */
+    protected void send(Connection conn, ByteBuffer frame) throws IOException {
+        conn.write(frame);
+    }
+
+    /**
+     * 在当前帧之后接收length字节的原始数据，只能在{@link #onFrame(Connection, Frame)}中调用
+     */
+    protected void expectBulk(Connection conn, long length) {
+        conn.decoder.expectBulk(length);
+    }
+
+    /**
+     * 对等方连入时在Reactor线程中回调
+     */
+    protected void onConnected(Connection conn) throws Exception {
+    }
+
+    /**
+     * 在Reactor线程中回调，frame仅在本次回调内有效，需在回调外使用时调用{@link Frame#copy()}
+     */
+    protected abstract void onFrame(Connection conn, Frame frame) throws Exception;
+
+    /**
+     * 在Reactor线程中回调，收到{@link #expectBulk(Connection, long)}声明的一段原始数据
+     */
+    protected void onBulkData(Connection conn, ByteBuffer chunk) throws Exception {
+        chunk.position(chunk.limit());
+    }
+
+    /**
+     * 原始数据接收结束，收齐时在Reactor线程中回调，连接提前断开时在处理线程池中回调
+     *
+     * @param complete 是否收齐了声明的长度，连接提前断开时为false
+     */
+    protected void onBulkEnd(Connection conn, boolean complete) throws Exception {
+    }
+
+    /**
+     * 对等方关闭连接时在处理线程池中回调，此前提交的任务均已执行完毕
+     */
+    protected void onDisconnected(Connection conn) throws Exception {
+    }
+}
@@ -0,0 +1,195 @@
+package com.nov21th.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 负责一组连接读写的选择器线程，由{@link TCPServer}接受连接后分派
+ * 每个Reactor拥有自己的直接缓冲区作为读缓冲区，只在本线程内使用
+ */
+class Reactor extends Thread {
+
+    private final TCPServer server;
+
+    private final Selector selector;
+
+    private final BufferPool bufferPool;
+
+    private final ByteBuffer buffer;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 定时任务，只在本线程内访问
+     */
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+
+    Reactor(TCPServer server, String name, BufferPool bufferPool) throws IOException {
+        super(name);
+
+        this.server = server;
+        this.selector = Selector.open();
+        this.bufferPool = bufferPool;
+        this.buffer = bufferPool.acquire();
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    TCPServer getServer() {
+        return server;
+    }
+
+    /**
+     * 将新接受的连接交由本Reactor处理
+     */
+    void register(final SocketChannel sc) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                Connection conn = null;
+                try {
+                    SelectionKey sk = sc.register(selector, SelectionKey.OP_READ);
+                    conn = new Connection(sc, sk, Reactor.this);
+                    sk.attach(conn);
+
+                    server.onStreamStart(conn);
+                } catch (Exception e) {
+                    server.logger.error("注册连接时发生异常", e);
+                    if (conn != null) {
+                        conn.closeNow();
+                    } else {
+                        server.closedConnections.inc();
+                        try {
+                            sc.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 在本线程中执行task，用于修改选择键等只应由本线程进行的操作
+     */
+    void execute(Runnable task) {
+        if (Thread.currentThread() == this) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 在其他线程中关闭连接后调用，已注册的套接字要到选择器下一轮才真正关闭，选择器空闲时会一直占用文件描述符
+     */
+    void wakeup() {
+        if (Thread.currentThread() != this) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 在delayNanos纳秒后于本线程中执行task
+     */
+    void schedule(final Runnable task, long delayNanos) {
+        final long deadline = System.nanoTime() + delayNanos;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                timers.add(new Timer(deadline, task));
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isInterrupted()) {
+                Timer next = timers.peek();
+                if (next == null) {
+                    selector.select();
+                } else {
+                    long timeout = (next.deadline - System.nanoTime() + 999999) / 1000000;
+                    if (timeout > 0) {
+                        selector.select(timeout);
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+                long loopStart = System.nanoTime();
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    runTask(task);
+                }
+
+                long now = System.nanoTime();
+                while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+                    runTask(timers.poll().task);
+                }
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey sk = iterator.next();
+                    iterator.remove();
+
+                    Connection conn = (Connection) sk.attachment();
+                    try {
+                        if (sk.isValid() && sk.isWritable()) {
+                            conn.flush();
+                        }
+                        if (sk.isValid() && sk.isReadable()) {
+                            server.read(conn, buffer);
+                        }
+                    } catch (Exception e) {
+                        server.logger.error("处理连接时发生异常：" + conn.getRemoteAddress(), e);
+                        conn.closeNow();
+                    }
+                }
+
+                server.loopTime.record(System.nanoTime() - loopStart);
+            }
+        } catch (IOException e) {
+            server.logger.error("选择器发生异常", e);
+        }
+    }
+
+    /**
+     * 任务中的异常只记录，不能让其终止本线程，否则本Reactor上的全部连接都将停止响应
+     */
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            server.logger.error("选择器线程执行任务时发生异常", e);
+        }
+    }
+
+    private static class Timer implements Comparable<Timer> {
+
+        private final long deadline;
+
+        private final Runnable task;
+
+        private Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+}
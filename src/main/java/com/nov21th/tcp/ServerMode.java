@@ -0,0 +1,15 @@
+package com.nov21th.tcp;
+
+/**
+ * {@link TCPServer}处理连接的方式
+ */
+public enum ServerMode {
+    /**
+     * 由若干个{@link Reactor}以选择器处理全部连接的读写，处理逻辑在线程池中执行
+     */
+    SELECTOR,
+    /**
+     * 每个连接一个线程（JVM支持时为虚拟线程），以阻塞方式读写，处理逻辑直接在该线程中执行
+     */
+    THREAD_PER_CONNECTION
+}
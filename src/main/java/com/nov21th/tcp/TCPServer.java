@@ -1,41 +1,94 @@
 package com.nov21th.tcp;
 
-import com.nov21th.util.IPUtil;
+import com.nov21th.metrics.Counter;
+import com.nov21th.metrics.Gauge;
+import com.nov21th.metrics.Histogram;
+import com.nov21th.metrics.MetricRegistry;
+import com.nov21th.util.RateLimitedLogger;
+import com.nov21th.util.VirtualThreads;
 import org.slf4j.Logger;
 
-import java.io.ByteArrayOutputStream;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by g29 on 17-6-28.
+ * <p>
+ * 本线程只负责接受连接，连接的读写分散在若干个{@link Reactor}中进行，
+ * 数据接收完毕后的处理则交由单独的线程池执行，以免较慢的处理阻塞其他连接。
+ * <p>
+ * 也可以改为每个连接一个线程（见{@link ServerMode}），子类的回调不变，只是全部在该连接的线程中执行。
  */
 public abstract class TCPServer extends Thread {
 
     protected final Logger logger = getLogger();
 
+    /**
+     * 每个连接、每个请求各记录一次的日志每秒最多记录的条数
+     */
+    private static final int EVENT_LOG_PERMITS = 10;
+
+    /**
+     * 用于连入、请求等逐次发生的事件，超出频率的日志只计数
+     */
+    protected final RateLimitedLogger eventLogger = new RateLimitedLogger(logger, EVENT_LOG_PERMITS);
+
     /**
      * 默认缓冲区大小
      */
     private static final int DEFAULT_BUFFER_SIZE = 1024;
 
+    /**
+     * 等待接受的连接队列长度，大量对等方同时连入时默认的50容易溢出
+     */
+    private static final int BACKLOG = 1024;
+
+    /**
+     * 缓冲区池中最多保留的空闲缓冲区数
+     */
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
     /**
      * TCP服务器运行的端口号
      */
     private int port;
 
-    protected ByteBuffer buffer;
+    private ServerMode serverMode = ServerMode.SELECTOR;
 
-    protected Map<SocketAddress, TCPTransferState> requestMap;
+    private int reactorCount = Runtime.getRuntime().availableProcessors();
+
+    private ExecutorService handlerExecutor;
+
+    private Reactor[] reactors;
+
+    private BufferPool bufferPool;
+
+    private final MetricRegistry metrics = new MetricRegistry(metricsName(getClass()));
+
+    final Counter acceptedConnections = metrics.counter("connections.accepted");
+
+    final Counter closedConnections = metrics.counter("connections.closed");
+
+    final Counter bytesIn = metrics.counter("bytes.in");
+
+    final Counter bytesOut = metrics.counter("bytes.out");
+
+    /**
+     * Reactor每轮处理就绪事件、任务与定时任务的耗时，不含等待事件的时间
+     */
+    final Histogram loopTime = metrics.histogram("reactor.loop");
 
     public TCPServer(int port) {
         this(port, DEFAULT_BUFFER_SIZE);
@@ -43,22 +96,102 @@ public abstract class TCPServer extends Thread {
 
     public TCPServer(int port, int bufferSize) {
         this.port = port;
-        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.bufferPool = new BufferPool(bufferSize, MAX_POOLED_BUFFERS);
 
-        requestMap = new HashMap<>();
+        metrics.gauge("connections.active", new Gauge() {
+            @Override
+            public long getValue() {
+                return acceptedConnections.get() - closedConnections.get();
+            }
+        });
+    }
+
+    private static String metricsName(Class<?> type) {
+        while (type.getSimpleName().isEmpty()) {
+            type = type.getSuperclass();
+        }
+        return type.getSimpleName();
+    }
+
+    /**
+     * 本服务器的运行指标，子类可在其中加入自己的指标
+     */
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
+
+    public ServerMode getServerMode() {
+        return serverMode;
+    }
+
+    /**
+     * 设置处理连接的方式，默认为{@link ServerMode#SELECTOR}，需在启动前设置
+     */
+    public void setServerMode(ServerMode serverMode) {
+        this.serverMode = serverMode;
+    }
+
+    /**
+     * 设置处理连接读写的选择器线程数，默认为CPU核数，需在启动前设置
+     */
+    public void setReactorCount(int reactorCount) {
+        if (reactorCount < 1) {
+            throw new IllegalArgumentException("选择器线程数至少为1");
+        }
+        this.reactorCount = reactorCount;
+    }
+
+    /**
+     * 设置执行{@link #onStreamEnd(Connection)}的线程池，默认为CPU核数大小的固定线程池，需在启动前设置
+     * 每连接一个线程时不使用
+     */
+    public void setHandlerExecutor(ExecutorService handlerExecutor) {
+        this.handlerExecutor = handlerExecutor;
     }
 
     @Override
     public void run() {
         try {
+            metrics.registerMBean(new ObjectName("com.nov21th:type=" + metrics.getName() + ",port=" + port));
+        } catch (JMException e) {
+            logger.warn("注册JMX MBean失败", e);
+        }
+
+        try {
+            if (serverMode == ServerMode.THREAD_PER_CONNECTION) {
+                runThreadPerConnection();
+                return;
+            }
+
+            if (handlerExecutor == null) {
+                handlerExecutor = Executors.newFixedThreadPool(reactorCount, new ThreadFactory() {
+                    private final AtomicInteger seq = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, getName() + "-handler-" + seq.incrementAndGet());
+                        t.setDaemon(isDaemon());
+                        return t;
+                    }
+                });
+            }
+
+            reactors = new Reactor[reactorCount];
+            for (int i = 0; i < reactorCount; i++) {
+                reactors[i] = new Reactor(this, getName() + "-reactor-" + (i + 1), bufferPool);
+                reactors[i].setDaemon(isDaemon());
+                reactors[i].start();
+            }
+
             Selector selector = Selector.open();
 
             ServerSocketChannel server = ServerSocketChannel.open();
             server.configureBlocking(false);
-            server.bind(new InetSocketAddress(port));
+            server.bind(new InetSocketAddress(port), BACKLOG);
 
             server.register(selector, SelectionKey.OP_ACCEPT);
 
+            int next = 0;
             while (true) {
                 if (selector.select() > 0) {
                     Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
@@ -70,16 +203,14 @@ public abstract class TCPServer extends Thread {
                             ServerSocketChannel ssc = (ServerSocketChannel) sk.channel();
 
                             SocketChannel sc = ssc.accept();
-                            sc.configureBlocking(false);
+                            if (sc != null) {
+                                sc.configureBlocking(false);
+                                acceptedConnections.inc();
 
-                            sc.register(selector, SelectionKey.OP_READ);
+                                reactors[next].register(sc);
+                                next = (next + 1) % reactors.length;
 
-                            logger.info("对等方连入：{}", IPUtil.extractIP(sc.getRemoteAddress()));
-                        } else if (sk.isReadable()) {
-                            if (sk.channel() instanceof SocketChannel) {
-                                read(sk);
-                            } else {
-                                logger.error("非TCP数据");
+                                eventLogger.info("对等方连入：{}", sc.getRemoteAddress());
                             }
                         }
 
@@ -92,61 +223,141 @@ public abstract class TCPServer extends Thread {
         }
     }
 
-    private void read(SelectionKey sk) throws Exception {
-        SocketChannel sc = (SocketChannel) sk.channel();
-        SocketAddress addr = sc.getRemoteAddress();
+    /**
+     * 以阻塞方式接受连接，为每个连接启动一个线程，JVM支持时为虚拟线程
+     */
+    private void runThreadPerConnection() throws IOException {
+        if (VirtualThreads.isSupported()) {
+            logger.info("每个连接使用一个虚拟线程");
+        } else {
+            logger.warn("当前JVM不支持虚拟线程，每个连接使用一个平台线程");
+        }
+        ThreadFactory threads = VirtualThreads.newFactory(getName() + "-conn-", true);
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), BACKLOG);
+
+        while (true) {
+            final SocketChannel sc = server.accept();
+            acceptedConnections.inc();
+            eventLogger.info("对等方连入：{}", sc.getRemoteAddress());
 
-        TCPTransferState state = requestMap.get(addr);
-        if (state == null) {
-            state = new TCPTransferState();
-            requestMap.put(addr, state);
+            threads.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(sc);
+                }
+            }).start();
+        }
+    }
+
+    /**
+     * 在连接自己的线程中读取并处理数据，直到对等方关闭连接
+     */
+    private void serve(SocketChannel sc) {
+        ByteBuffer buffer = bufferPool.acquire();
+        Connection conn = null;
+        try {
+            conn = new Connection(sc, this, bufferPool);
+            onStreamStart(conn);
+            read(conn, buffer);
+        } catch (Exception e) {
+            logger.error("处理连接时发生异常：" + (conn == null ? "" : conn.getRemoteAddress()), e);
+            if (conn != null) {
+                conn.closeNow();
+            } else {
+                closedConnections.inc();
+                try {
+                    sc.close();
+                } catch (IOException ignored) {
+                }
+            }
+        } finally {
+            bufferPool.release(buffer);
         }
-        ByteArrayOutputStream out = state.out;
+    }
+
+    /**
+     * 由连接所属的Reactor调用，读出当前可读的全部数据
+     * 该方法在每次读事件时调用，除回调子类外不分配任何对象
+     * 每连接一个线程时由该线程调用，阻塞地读到对等方关闭连接为止
+     */
+    void read(final Connection conn, ByteBuffer buffer) throws Exception {
+        SocketChannel sc = conn.channel();
 
         buffer.clear();
         int bytesRead;
         try {
             while ((bytesRead = sc.read(buffer)) > 0) {
+                conn.touch(System.currentTimeMillis());
                 buffer.flip();
-                while (buffer.hasRemaining()) {
-                    out.write(buffer.get());
-                }
+                conn.received += bytesRead;
+                bytesIn.add(bytesRead);
+                onDataChunk(conn, buffer);
                 buffer.clear();
             }
         } catch (IOException e) {
             bytesRead = -1;
         }
-        logger.info("接收到TCP数据，接收自：{}，已接收：{}字节", IPUtil.extractIP(addr), out.size());
 
         if (bytesRead == -1) {
-            try {
-                logger.info("数据接收完毕，接收自：{}", IPUtil.extractIP(addr));
-
-                onDataReceived(sk, out.toByteArray());
-            } finally {
-                requestMap.remove(addr);
-                out.close();
-                sc.close();
-                sk.cancel();
+            if (logger.isDebugEnabled()) {
+                logger.debug("数据接收完毕，接收自：{}，共{}字节", conn.getRemoteIP(), conn.received);
             }
+
+            conn.stopReading();
+            execute(conn, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        onStreamEnd(conn);
+                    } catch (Exception e) {
+                        logger.error("处理请求时发生异常：" + conn.getRemoteAddress(), e);
+                    } finally {
+                        conn.close();
+                    }
+                }
+            });
         }
     }
 
+    /**
+     * 在处理线程池中执行task，同一连接上的任务按提交顺序依次执行
+     * 每连接一个线程时直接在当前线程中执行
+     */
+    protected void execute(Connection conn, Runnable task) {
+        if (conn.isBlocking()) {
+            task.run();
+            return;
+        }
+        conn.execute(task, handlerExecutor);
+    }
+
     protected abstract Logger getLogger();
 
-    protected abstract void onDataReceived(SelectionKey sk, byte[] data) throws Exception;
+    /**
+     * 对等方连入时回调，子类可在此初始化该连接的接收状态
+     */
+    protected void onStreamStart(Connection conn) throws Exception {
+    }
 
     /**
-     * TCP传输状态类，由于TCP本身具有的可靠传输的特性
-     * 因此暂时只设置一个输出缓存
+     * 每从套接字读到一段数据即在Reactor线程中回调一次，chunk为直接缓冲区，仅在本次回调内有效
+     * 默认实现将数据缓存在内存中，待接收完毕后交由{@link #onDataReceived(Connection, byte[])}处理
      */
-    private class TCPTransferState {
+    protected void onDataChunk(Connection conn, ByteBuffer chunk) throws Exception {
+        conn.appendInbound(chunk);
+    }
 
-        private ByteArrayOutputStream out;
+    /**
+     * 对等方数据发送完毕（或连接中断）时在处理线程池中回调，回调结束后连接即在排队的数据发送完后关闭
+     */
+    protected void onStreamEnd(Connection conn) throws Exception {
+        onDataReceived(conn, conn.inboundBytes());
+    }
 
-        public TCPTransferState() {
-            out = new ByteArrayOutputStream();
-        }
+    protected void onDataReceived(Connection conn, byte[] data) throws Exception {
+        logger.error("未处理的数据，来自：{}，共{}字节", conn.getRemoteIP(), data.length);
     }
 
 }
@@ -0,0 +1,135 @@
+package com.nov21th.tcp;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * 令牌桶，限制发送的平均速率，可在运行时调整
+ * <p>
+ * 令牌按速率持续补充，桶的容量为0.1秒的量（至少{@link #MIN_CAPACITY}字节），允许短时的突发。
+ * 多个线程同时取用时可能略微透支，透支的部分从之后补充的令牌中扣除。
+ * <p>
+ * 令牌不足时取用方按先后排队，只有队首可以取用，使共用同一令牌桶的各方轮流发送。
+ * 队首长时间不取用（如对方接收缓慢）以至桶满时，将其移至队尾。
+ */
+public class TokenBucket {
+
+    /**
+     * 桶的最小容量，保证每次至少可以发送一块完整的数据
+     */
+    public static final long MIN_CAPACITY = 16 * 1024;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /**
+     * 每秒补充的字节数，不大于0时不限速
+     */
+    private volatile long rate;
+
+    private long capacity;
+
+    private double tokens;
+
+    private long refilledAt = System.nanoTime();
+
+    private final Set<Object> waiters = new LinkedHashSet<>();
+
+    /**
+     * @param rate 每秒允许发送的字节数，不大于0时不限速
+     */
+    public TokenBucket(long rate) {
+        setRate(rate);
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * 调整速率，原先不限速时桶为满
+     */
+    public synchronized void setRate(long rate) {
+        boolean wasUnlimited = this.rate <= 0;
+        refill(System.nanoTime());
+
+        this.rate = rate;
+        this.capacity = Math.max(rate / 10, MIN_CAPACITY);
+        if (wasUnlimited || tokens > capacity) {
+            tokens = capacity;
+        }
+    }
+
+    /**
+     * waiter当前可以发送的字节数，不限速时为{@link Long#MAX_VALUE}，排在其他等待者之后时为0
+     */
+    synchronized long available(Object waiter, long now) {
+        if (rate <= 0) {
+            return Long.MAX_VALUE;
+        }
+        refill(now);
+
+        if (!waiters.isEmpty()) {
+            Iterator<Object> iterator = waiters.iterator();
+            Object head = iterator.next();
+            if (head != waiter) {
+                if (tokens < capacity) {
+                    return 0;
+                }
+                iterator.remove();
+                waiters.add(head);
+                if (waiters.iterator().next() != waiter) {
+                    return 0;
+                }
+            }
+        }
+        return Math.max(0, (long) tokens);
+    }
+
+    /**
+     * 扣除已发送的字节数
+     */
+    synchronized void consume(long bytes) {
+        if (rate > 0) {
+            tokens -= bytes;
+        }
+    }
+
+    /**
+     * waiter排队等待发送bytes字节，已在队列中时保持原位
+     *
+     * @return 按排在前面的等待者各发送bytes字节估计的等待纳秒数
+     */
+    synchronized long await(Object waiter, long bytes, long now) {
+        if (rate <= 0) {
+            return 0;
+        }
+        refill(now);
+
+        waiters.add(waiter);
+        int position = 0;
+        for (Object w : waiters) {
+            position++;
+            if (w == waiter) {
+                break;
+            }
+        }
+
+        double needed = (double) bytes * position - tokens;
+        return needed <= 0 ? 1 : (long) Math.ceil(needed * NANOS_PER_SECOND / rate);
+    }
+
+    /**
+     * waiter已取得令牌或放弃发送，退出队列
+     */
+    synchronized void cancel(Object waiter) {
+        waiters.remove(waiter);
+    }
+
+    private void refill(long now) {
+        if (rate > 0) {
+            tokens = Math.min(capacity, tokens + (double) (now - refilledAt) * rate / NANOS_PER_SECOND);
+        }
+        refilledAt = now;
+    }
+}
@@ -0,0 +1,116 @@
+package com.nov21th.tcp.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * 一条消息，由操作码与负载组成，负载中的字段按写入顺序依次读出
+ * <p>
+ * 帧格式为：操作码（1字节）+ 负载长度（4字节）+ 负载。
+ * 字段编码：int为4字节，long为8字节，字符串为2字节长度 + UTF-8字节，
+ * 校验码为1字节长度 + 原始字节（而非十六进制字符串）。
+ */
+public class Frame {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * 空字符串编码后的长度
+     */
+    public static final int MIN_STRING_LENGTH = 2;
+
+    /**
+     * 空校验码编码后的长度
+     */
+    public static final int MIN_HASH_LENGTH = 1;
+
+    private byte opcode;
+
+    private ByteBuffer payload;
+
+    public Frame(byte opcode, ByteBuffer payload) {
+        this.opcode = opcode;
+        this.payload = payload;
+    }
+
+    /**
+     * 由{@link FrameDecoder}复用同一个实例，避免每条消息都分配新对象
+     */
+    void reset(byte opcode, ByteBuffer payload) {
+        this.opcode = opcode;
+        this.payload = payload;
+    }
+
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    public ByteBuffer payload() {
+        return payload;
+    }
+
+    public boolean hasRemaining() {
+        return payload.hasRemaining();
+    }
+
+    public int getInt() {
+        return payload.getInt();
+    }
+
+    public long getLong() {
+        return payload.getLong();
+    }
+
+    /**
+     * 读出其后的元素个数，每个元素编码后至少占minLength字节
+     * 个数来自网络或磁盘，为负或超出负载剩余部分所能容纳的数量时说明帧已损坏，
+     * 不能直接用于分配内存
+     */
+    public int getCount(int minLength) {
+        int count = payload.getInt();
+        if (count < 0 || count > payload.remaining() / minLength) {
+            throw new IllegalArgumentException("无效的元素个数：" + count);
+        }
+        return count;
+    }
+
+    public String getString() {
+        int length = payload.getShort() & 0xFFFF;
+        String s;
+        if (payload.hasArray()) {
+            s = new String(payload.array(), payload.arrayOffset() + payload.position(), length, UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            payload.duplicate().get(bytes);
+            s = new String(bytes, UTF_8);
+        }
+        payload.position(payload.position() + length);
+        return s;
+    }
+
+    /**
+     * 读出一个校验码，以十六进制字符串表示
+     */
+    public String getHash() {
+        int length = payload.get() & 0xFF;
+        char[] hex = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int b = payload.get() & 0xFF;
+            hex[i * 2] = HEX[b >>> 4];
+            hex[i * 2 + 1] = HEX[b & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * 复制一份独立于原缓冲区的帧，用于在解码回调之外使用
+     */
+    public Frame copy() {
+        ByteBuffer data = ByteBuffer.allocate(payload.remaining());
+        data.put(payload.duplicate());
+        data.flip();
+        return new Frame(opcode, data);
+    }
+}
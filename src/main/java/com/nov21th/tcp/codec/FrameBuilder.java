@@ -0,0 +1,129 @@
+package com.nov21th.tcp.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 按{@link Frame}中描述的格式编码一条消息
+ * <p>
+ * 用法：new FrameBuilder(opcode).putString(name).putLong(size).build()
+ */
+public class FrameBuilder {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private ByteBuffer buffer;
+
+    public FrameBuilder(byte opcode) {
+        this(opcode, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity 预估的负载长度，不足时自动扩容
+     */
+    public FrameBuilder(byte opcode, int capacity) {
+        buffer = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH + capacity);
+        buffer.put(opcode);
+        buffer.putInt(0);
+    }
+
+    public FrameBuilder putInt(int value) {
+        ensure(4);
+        buffer.putInt(value);
+        return this;
+    }
+
+    public FrameBuilder putLong(long value) {
+        ensure(8);
+        buffer.putLong(value);
+        return this;
+    }
+
+    public FrameBuilder putString(String value) {
+        boolean ascii = true;
+        for (int i = 0; i < value.length() && ascii; i++) {
+            ascii = value.charAt(i) < 0x80;
+        }
+
+        if (ascii) {
+            // 纯ASCII字符串直接逐字节写入，省去编码时的临时数组
+            int length = value.length();
+            checkStringLength(length);
+            ensure(2 + length);
+            buffer.putShort((short) length);
+            for (int i = 0; i < length; i++) {
+                buffer.put((byte) value.charAt(i));
+            }
+        } else {
+            byte[] bytes = value.getBytes(Frame.UTF_8);
+            checkStringLength(bytes.length);
+            ensure(2 + bytes.length);
+            buffer.putShort((short) bytes.length);
+            buffer.put(bytes);
+        }
+        return this;
+    }
+
+    /**
+     * 在指定位置（自帧头开始计算）覆写一个int，用于回填编码前未知的计数等字段
+     */
+    public FrameBuilder putInt(int index, int value) {
+        buffer.putInt(index, value);
+        return this;
+    }
+
+    /**
+     * 在指定位置（自帧头开始计算）覆写一个long
+     */
+    public FrameBuilder putLong(int index, long value) {
+        buffer.putLong(index, value);
+        return this;
+    }
+
+    /**
+     * 已编码的字节数，包括帧头
+     */
+    public int size() {
+        return buffer.position();
+    }
+
+    /**
+     * 写入以十六进制字符串表示的校验码，编码为原始字节
+     */
+    public FrameBuilder putHash(String hex) {
+        int length = hex.length() / 2;
+        if (length > 0xFF || hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("无效的校验码：" + hex);
+        }
+
+        ensure(1 + length);
+        buffer.put((byte) length);
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) (Character.digit(hex.charAt(i * 2), 16) << 4 | Character.digit(hex.charAt(i * 2 + 1), 16)));
+        }
+        return this;
+    }
+
+    /**
+     * 完成编码，返回可直接写入通道的缓冲区
+     */
+    public ByteBuffer build() {
+        buffer.putInt(1, buffer.position() - FrameCodec.HEADER_LENGTH);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void checkStringLength(int length) {
+        if (length > 0xFFFF) {
+            throw new IllegalArgumentException("字符串过长：" + length + "字节");
+        }
+    }
+
+    private void ensure(int length) {
+        if (buffer.remaining() < length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.nov21th.tcp.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 在阻塞通道上读写帧，供客户端使用
+ */
+public abstract class FrameCodec {
+
+    /**
+     * 帧头长度：操作码（1字节）+ 负载长度（4字节）
+     */
+    public static final int HEADER_LENGTH = 5;
+
+    /**
+     * 默认允许的最大负载长度
+     */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    public static void writeFrame(WritableByteChannel channel, ByteBuffer frame) throws IOException {
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    /**
+     * 读出一个完整的帧
+     *
+     * @return 对方在帧开始前关闭连接时返回null
+     */
+    public static Frame readFrame(ReadableByteChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        if (!readFully(channel, header)) {
+            if (header.position() == 0) {
+                return null;
+            }
+            throw new EOFException("帧头不完整");
+        }
+        header.flip();
+
+        byte opcode = header.get();
+        int length = header.getInt();
+        if (length < 0 || length > DEFAULT_MAX_FRAME_LENGTH) {
+            throw new IOException("无效的帧长度：" + length);
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        if (!readFully(channel, payload)) {
+            throw new EOFException("帧负载不完整");
+        }
+        payload.flip();
+
+        return new Frame(opcode, payload);
+    }
+
+    /**
+     * 从通道中读满buffer
+     *
+     * @return 读满之前遇到连接关闭时返回false
+     */
+    public static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
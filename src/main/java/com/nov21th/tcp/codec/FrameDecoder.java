@@ -0,0 +1,222 @@
+package com.nov21th.tcp.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 从分段到达的数据中增量解码出帧
+ * <p>
+ * 帧完整地位于同一段数据中时直接以该段数据的切片回调，不做拷贝；
+ * 跨越多段的帧先缓存，收齐后再回调。缓存随数据到达逐步扩大，不按帧头声明的长度一次分配。
+ * 处理者可在{@link Handler#onFrame(Frame)}中调用{@link #expectBulk(long)}，
+ * 表示该帧之后紧跟指定长度的原始数据（如文件内容），这些数据不再按帧解析，
+ * 而是通过{@link Handler#onBulkData(ByteBuffer)}逐段交给处理者。
+ */
+public class FrameDecoder {
+
+    public interface Handler {
+
+        /**
+         * 解码出一个帧，frame及其负载仅在本次回调内有效
+         */
+        void onFrame(Frame frame) throws Exception;
+
+        /**
+         * 收到一段原始数据，chunk仅在本次回调内有效
+         */
+        void onBulkData(ByteBuffer chunk) throws Exception;
+
+        /**
+         * 原始数据接收完毕
+         */
+        void onBulkEnd() throws Exception;
+    }
+
+    /**
+     * 各操作码允许的最大负载长度
+     */
+    public interface LengthLimit {
+
+        int getMaxFrameLength(byte opcode);
+    }
+
+    /**
+     * 跨越多段数据的帧负载的初始缓存大小
+     */
+    private static final int INITIAL_PAYLOAD_CAPACITY = 4 * 1024;
+
+    private final Handler handler;
+
+    private final LengthLimit limit;
+
+    private final ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH);
+
+    private final Frame frame = new Frame((byte) 0, null);
+
+    private byte opcode;
+
+    /**
+     * 跨越多段数据的帧负载，为null表示正在读取帧头
+     */
+    private ByteBuffer payload;
+
+    /**
+     * 帧头声明的负载长度
+     */
+    private int payloadLength;
+
+    private long bulkRemaining;
+
+    private boolean inBulk;
+
+    public FrameDecoder(Handler handler) {
+        this(handler, FrameCodec.DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public FrameDecoder(Handler handler, final int maxFrameLength) {
+        this(handler, new LengthLimit() {
+            @Override
+            public int getMaxFrameLength(byte opcode) {
+                return maxFrameLength;
+            }
+        });
+    }
+
+    public FrameDecoder(Handler handler, LengthLimit limit) {
+        this.handler = handler;
+        this.limit = limit;
+    }
+
+    /**
+     * 在当前帧之后接收length字节的原始数据，只能在{@link Handler#onFrame(Frame)}中调用
+     */
+    public void expectBulk(long length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("无效的数据长度：" + length);
+        }
+        bulkRemaining = length;
+        inBulk = true;
+    }
+
+    /**
+     * 是否正在接收原始数据
+     */
+    public boolean isInBulk() {
+        return inBulk;
+    }
+
+    public long getBulkRemaining() {
+        return bulkRemaining;
+    }
+
+    /**
+     * 解码chunk中的全部数据
+     */
+    public void decode(ByteBuffer chunk) throws Exception {
+        while (chunk.hasRemaining()) {
+            if (inBulk) {
+                int n = (int) Math.min(chunk.remaining(), bulkRemaining);
+                int limit = chunk.limit();
+                int end = chunk.position() + n;
+                chunk.limit(end);
+                try {
+                    handler.onBulkData(chunk);
+                } finally {
+                    chunk.limit(limit);
+                    chunk.position(end);
+                }
+
+                bulkRemaining -= n;
+                endBulkIfDone();
+                continue;
+            }
+
+            if (payload == null) {
+                int length;
+                if (header.position() == 0 && chunk.remaining() >= FrameCodec.HEADER_LENGTH) {
+                    opcode = chunk.get();
+                    length = checkLength(chunk.getInt());
+                } else {
+                    while (header.hasRemaining() && chunk.hasRemaining()) {
+                        header.put(chunk.get());
+                    }
+                    if (header.hasRemaining()) {
+                        return;
+                    }
+                    header.flip();
+                    opcode = header.get();
+                    length = checkLength(header.getInt());
+                    header.clear();
+                }
+
+                if (chunk.remaining() >= length) {
+                    // 负载完整地位于chunk中，直接以切片回调
+                    int limit = chunk.limit();
+                    int end = chunk.position() + length;
+                    chunk.limit(end);
+                    try {
+                        dispatch(chunk);
+                    } finally {
+                        chunk.limit(limit);
+                        chunk.position(end);
+                    }
+                    continue;
+                }
+                payloadLength = length;
+                payload = ByteBuffer.allocate(Math.min(length, Math.max(INITIAL_PAYLOAD_CAPACITY, chunk.remaining())));
+            }
+
+            int n = Math.min(chunk.remaining(), payloadLength - payload.position());
+            ensureCapacity(payload.position() + n);
+            int limit = chunk.limit();
+            chunk.limit(chunk.position() + n);
+            payload.put(chunk);
+            chunk.limit(limit);
+
+            if (payload.position() == payloadLength) {
+                payload.flip();
+                ByteBuffer complete = payload;
+                payload = null;
+                dispatch(complete);
+            }
+        }
+    }
+
+    private int checkLength(int length) throws IOException {
+        if (length < 0 || length > limit.getMaxFrameLength(opcode)) {
+            throw new IOException("无效的帧长度：" + length + "，操作码：" + opcode);
+        }
+        return length;
+    }
+
+    /**
+     * 使负载缓存至少能容纳capacity字节，按倍数扩大，不超过声明的长度
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity <= payload.capacity()) {
+            return;
+        }
+        int grown = (int) Math.min(payloadLength, Math.max(capacity, 2L * payload.capacity()));
+        ByteBuffer larger = ByteBuffer.allocate(grown);
+        payload.flip();
+        larger.put(payload);
+        payload = larger;
+    }
+
+    private void dispatch(ByteBuffer data) throws Exception {
+        frame.reset(opcode, data);
+        handler.onFrame(frame);
+        frame.reset((byte) 0, null);
+
+        if (inBulk) {
+            endBulkIfDone();
+        }
+    }
+
+    private void endBulkIfDone() throws Exception {
+        if (bulkRemaining == 0) {
+            inBulk = false;
+            handler.onBulkEnd();
+        }
+    }
+}
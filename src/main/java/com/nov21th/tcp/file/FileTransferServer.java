@@ -1,47 +1,202 @@
 package com.nov21th.tcp.file;
 
 import com.nov21th.common.Constant;
-import com.nov21th.tcp.TCPServer;
-import com.nov21th.util.IPUtil;
+import com.nov21th.metrics.Counter;
+import com.nov21th.metrics.Gauge;
+import com.nov21th.metrics.Histogram;
+import com.nov21th.tcp.BufferPool;
+import com.nov21th.tcp.Connection;
+import com.nov21th.tcp.FileRegion;
+import com.nov21th.tcp.FrameServer;
+import com.nov21th.tcp.TokenBucket;
+import com.nov21th.tcp.codec.Frame;
+import com.nov21th.tcp.codec.FrameBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.FileInputStream;
-import java.net.InetSocketAddress;
-import java.net.SocketAddress;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by GuoYonghui on 2017/6/29.
+ * <p>
+ * 文件数据经由请求到达的同一连接发回，按请求到达的顺序排在响应头之后，
+ * 由Reactor在套接字可写时写出，发送期间不占用处理线程。
+ * <p>
+ * 各连接每轮最多发送{@link #QUANTUM}乘以其权重的字节，之后让给同一Reactor上的其他连接，
+ * 使同时进行的上传按权重分享带宽。总速率与单个连接的速率可分别限制，并可在运行时调整。
  */
-public class FileTransferServer extends TCPServer {
+public class FileTransferServer extends FrameServer {
+
+    private static final int HEAP_BUFFER_SIZE = 1024;
+
+    private static final int DIRECT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 池中最多保留的空闲直接缓冲区数
+     */
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    /**
+     * 默认的同时上传数上限，同一下载方的分块请求连续发出，各占一个名额
+     */
+    private static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 64;
+
+    /**
+     * 权重为1的连接每轮最多发送的字节数
+     */
+    private static final long QUANTUM = 64 * 1024;
+
+    /**
+     * 请求只含文件名与若干定长字段，超出该长度即视为异常连接
+     */
+    private static final int MAX_REQUEST_LENGTH = 4 * 1024;
 
     private String repository;
 
-    private FileTransferCallback callback;
+    private volatile TransferMode mode = TransferMode.ZERO_COPY;
+
+    /**
+     * 全部上传共用的总速率限制
+     */
+    private final TokenBucket totalLimit = new TokenBucket(0);
+
+    private volatile long connectionRate;
+
+    /**
+     * 各连接的速率限制，保存在连接上，调整单个连接的速率上限时逐一更新
+     * 连接异常关闭时不会回调{@link #onDisconnected}，因此以弱引用保存，随连接一同回收
+     */
+    private final Set<TokenBucket> connectionLimits =
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<TokenBucket, Boolean>()));
+
+    /**
+     * 各请求方IP的权重，未设置的为1
+     */
+    private final Map<String, Integer> weights = new ConcurrentHashMap<>();
+
+    /**
+     * 已排入连接、尚未发送完毕的上传数
+     */
+    private final AtomicInteger activeUploads = new AtomicInteger();
+
+    private volatile int maxConcurrentUploads = DEFAULT_MAX_CONCURRENT_UPLOADS;
+
+    /**
+     * DIRECT_BUFFER方式及transferTo出错时使用的直接缓冲区
+     */
+    private final BufferPool transferBuffers = new BufferPool(DIRECT_BUFFER_SIZE, MAX_POOLED_BUFFERS);
 
-    public FileTransferServer(int port, String repository, FileTransferCallback callback) {
+    private final Counter missingFiles = getMetrics().counter("upload.missing");
+
+    private final Counter rejectedUploads = getMetrics().counter("upload.rejected");
+
+    /**
+     * 从收到请求到上传结束（发送完毕或连接关闭）的耗时，按请求类型分别统计
+     */
+    private final Histogram fileLatency = getMetrics().histogram("request.file");
+
+    private final Histogram rangeLatency = getMetrics().histogram("request.range");
+
+    private final Histogram pieceLatency = getMetrics().histogram("request.fetch");
+
+    public FileTransferServer(int port, String repository) {
         super(port);
 
+        init(repository);
+    }
+
+    public FileTransferServer(int port, int bufferSize, String repository) {
+        super(port, bufferSize);
+
+        init(repository);
+    }
+
+    private void init(String repository) {
         if (!repository.endsWith("/")) {
             repository += "/";
         }
 
         this.repository = repository;
-        this.callback = callback;
+
+        getMetrics().gauge("upload.active", new Gauge() {
+            @Override
+            public long getValue() {
+                return activeUploads.get();
+            }
+        });
     }
 
-    public FileTransferServer(int port, int bufferSize, String repository, FileTransferCallback callback) {
-        super(port, bufferSize);
+    public TransferMode getTransferMode() {
+        return mode;
+    }
 
-        if (!repository.endsWith("/")) {
-            repository += "/";
+    /**
+     * 设置向对等方发送文件的方式，默认为{@link TransferMode#ZERO_COPY}
+     */
+    public void setTransferMode(TransferMode mode) {
+        this.mode = mode;
+    }
+
+    public int getMaxConcurrentUploads() {
+        return maxConcurrentUploads;
+    }
+
+    /**
+     * 设置同时进行的上传数上限，超出时以OP_ERROR拒绝新的请求，可在运行时调整
+     */
+    public void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        if (maxConcurrentUploads < 1) {
+            throw new IllegalArgumentException("同时上传数必须为正数");
         }
+        this.maxConcurrentUploads = maxConcurrentUploads;
+    }
 
-        this.repository = repository;
-        this.callback = callback;
+    public long getMaxUploadRate() {
+        return totalLimit.getRate();
+    }
+
+    /**
+     * 设置全部上传的总速率上限（字节/秒），不大于0时不限，可在运行时调整
+     */
+    public void setMaxUploadRate(long bytesPerSecond) {
+        totalLimit.setRate(bytesPerSecond);
+    }
+
+    public long getMaxUploadRatePerConnection() {
+        return connectionRate;
+    }
+
+    /**
+     * 设置单个连接的上传速率上限（字节/秒），不大于0时不限，可在运行时调整，对已有的连接同样生效
+     */
+    public void setMaxUploadRatePerConnection(long bytesPerSecond) {
+        connectionRate = bytesPerSecond;
+        synchronized (connectionLimits) {
+            for (TokenBucket limit : connectionLimits) {
+                limit.setRate(bytesPerSecond);
+            }
+        }
+    }
+
+    /**
+     * 设置来自ip的请求分享带宽的权重，不大于0时恢复为1，对之后的请求生效
+     */
+    public void setUploadWeight(String ip, int weight) {
+        if (weight <= 0) {
+            weights.remove(ip);
+        } else {
+            weights.put(ip, weight);
+        }
     }
 
     @Override
@@ -50,78 +205,219 @@ public class FileTransferServer extends TCPServer {
     }
 
     @Override
-    protected void onDataReceived(SelectionKey sk, byte[] data) throws Exception {
-        SocketChannel sc = (SocketChannel) sk.channel();
-        SocketAddress addr = sc.getRemoteAddress();
-
-        int headerLength = -1;
-        for (int i = 0; i < Math.min(100, data.length); i++) {
-            if ((char) data[i] == '\n') {
-                headerLength = i;
+    protected void onConnected(Connection conn) throws Exception {
+        TokenBucket limit = new TokenBucket(connectionRate);
+        conn.attach(limit);
+        connectionLimits.add(limit);
+        // 与调整速率上限并发时，以调整后的值为准
+        limit.setRate(connectionRate);
+    }
+
+    @Override
+    protected void onDisconnected(Connection conn) throws Exception {
+        connectionLimits.remove(conn.attachment());
+    }
+
+    @Override
+    protected int getMaxFrameLength(byte opcode) {
+        return MAX_REQUEST_LENGTH;
+    }
+
+    @Override
+    protected void onFrame(Connection conn, Frame frame) throws Exception {
+        long arrived = System.nanoTime();
+
+        switch (frame.getOpcode()) {
+            case Constant.OP_CONNECT:
+                eventLogger.info("对等方请求进行身份认证：{}", conn.getRemoteAddress());
+
+                send(conn, new FrameBuilder(Constant.OP_ACCEPT).build());
+                break;
+            case Constant.OP_REQUEST: {
+                String filename = frame.getString();
+                if (!frame.hasRemaining()) {
+                    eventLogger.info("对等方请求文件传输：{}，请求来自：{}", filename, conn.getRemoteAddress());
+
+                    execute(conn, new Upload(conn, filename, new FrameBuilder(Constant.OP_FILE), 0, Long.MAX_VALUE,
+                            false, fileLatency, arrived));
+                } else {
+                    long offset = frame.getLong();
+                    long length = frame.getLong();
+                    if (offset < 0 || length < 0) {
+                        reject(conn, "无效的请求范围：" + offset + "+" + length);
+                        break;
+                    }
+
+                    eventLogger.info("对等方请求文件传输：{}，范围：{}+{}，请求来自：{}", filename, offset, length, conn.getRemoteAddress());
+
+                    FrameBuilder header = new FrameBuilder(Constant.OP_RANGE).putString(filename).putLong(offset);
+                    execute(conn, new Upload(conn, filename, header, offset, length, false, rangeLatency, arrived));
+                }
                 break;
             }
-        }
+            case Constant.OP_FETCH: {
+                String filename = frame.getString();
+                int index = frame.getInt();
+                if (index < 0) {
+                    reject(conn, "无效的块序号：" + index);
+                    break;
+                }
+
+                eventLogger.info("对等方请求文件块：{}#{}，请求来自：{}", filename, index, conn.getRemoteAddress());
 
-        if (headerLength == -1) {
-            logger.error("无效的数据头");
-            return;
+                FrameBuilder header = new FrameBuilder(Constant.OP_PIECE).putString(filename).putInt(index);
+                execute(conn, new Upload(conn, filename, header, (long) index * Constant.PIECE_SIZE, Constant.PIECE_SIZE,
+                        true, pieceLatency, arrived));
+                break;
+            }
+            default:
+                logger.error("未知的命令：{}", frame.getOpcode());
         }
+    }
+
+    /**
+     * 以OP_ERROR拒绝请求，与此前排队的上传一样交给处理线程池，保证响应的顺序与请求一致
+     */
+    private void reject(final Connection conn, final String message) {
+        logger.warn("{}，请求来自：{}", message, conn.getRemoteAddress());
+        execute(conn, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    send(conn, new FrameBuilder(Constant.OP_ERROR).putString(message).build());
+                } catch (IOException e) {
+                    logger.error("响应对等方失败：{}", conn.getRemoteAddress());
+                }
+            }
+        });
+    }
+
+    /**
+     * 在连接上排入响应头与文件数据，文件不存在时以OP_ERROR响应
+     * 同一连接的上传依次执行，响应的顺序与请求一致
+     */
+    private class Upload implements Runnable {
+
+        private final Connection conn;
+
+        private final String filename;
+
+        private final FrameBuilder header;
+
+        private final long position;
 
-        String header = new String(data, 0, headerLength);
+        private final long count;
 
-        switch (header) {
-            case Constant.CMD_CONNECT:
-                logger.info("对等方请求进行身份认证：{}", addr);
+        /**
+         * 为true时请求的起始位置必须在文件内，用于按块请求
+         */
+        private final boolean bounded;
+
+        private final Histogram latency;
+
+        private final long arrived;
+
+        /**
+         * @param header  数据头，末尾由本任务追加实际发送的字节数
+         * @param latency 上传结束时记录自arrived（纳秒）起的耗时
+         */
+        private Upload(Connection conn, String filename, FrameBuilder header, long position, long count,
+                       boolean bounded, Histogram latency, long arrived) {
+            this.conn = conn;
+            this.filename = filename;
+            this.header = header;
+            this.position = position;
+            this.count = count;
+            this.bounded = bounded;
+            this.latency = latency;
+            this.arrived = arrived;
+        }
+
+        @Override
+        public void run() {
+            // 打开文件前先占用名额，排入连接后由区域关闭时归还
+            if (activeUploads.incrementAndGet() > maxConcurrentUploads) {
+                activeUploads.decrementAndGet();
+                rejectedUploads.inc();
+                logger.warn("同时上传数已达上限{}，拒绝请求：{}，请求来自：{}", maxConcurrentUploads, filename, conn.getRemoteAddress());
+                reply(new FrameBuilder(Constant.OP_ERROR).putString("上传数已达上限，请稍后重试").build());
+                return;
+            }
 
-                buffer.clear();
-                buffer.put((Constant.CMD_ACCEPT + "\n").getBytes());
-                buffer.flip();
-                while (buffer.hasRemaining()) {
-                    sc.write(buffer);
+            FileChannel fc = null;
+            boolean queued = false;
+            try {
+                try {
+                    fc = new FileInputStream(repository + filename).getChannel();
+                } catch (FileNotFoundException e) {
+                    missingFiles.inc();
+                    logger.error("请求的文件不存在：{}，请求来自：{}", filename, conn.getRemoteAddress());
+                    reply(new FrameBuilder(Constant.OP_ERROR).putString("文件不存在：" + filename).build());
+                    return;
                 }
-                buffer.clear();
 
-                sc.shutdownOutput();
-                break;
-            case Constant.CMD_REQUEST:
-                String filename = new String(data, Constant.CMD_REQUEST.length() + 1, data.length - Constant.CMD_REQUEST.length() - 1);
-
-                logger.info("对等方请求文件传输：{}，请求来自：{}", filename, addr);
-
-                FileChannel fc = new FileInputStream(repository + filename).getChannel();
-
-                SocketChannel sendChannel = SocketChannel.open();
-                sendChannel.configureBlocking(true);
-                sendChannel.connect(new InetSocketAddress(IPUtil.extractIP(addr), 12345));
-
-                buffer.clear();
-                buffer.put((Constant.CMD_FILE + "\n").getBytes());
-                buffer.flip();
-                sendChannel.write(buffer);
-                buffer.clear();
-                while (fc.read(buffer) > -1) {
-                    buffer.flip();
-                    sendChannel.write(buffer);
-                    buffer.clear();
+                if (bounded && position >= fc.size()) {
+                    logger.warn("请求的块超出文件末尾：{}，位置：{}，请求来自：{}", filename, position, conn.getRemoteAddress());
+                    reply(new FrameBuilder(Constant.OP_ERROR).putString("请求的块超出文件末尾：" + filename).build());
+                    return;
                 }
-                sendChannel.shutdownOutput();
 
-                fc.close();
-                sendChannel.close();
+                long length = Math.max(0, Math.min(count, fc.size() - position));
+                conn.write(header.putLong(length).build());
 
-                logger.info("文件传输完毕：{}，传送至：{}", filename, addr);
-                break;
-            case Constant.CMD_FILE:
-                logger.info("接收到对等方传输的文件：{}", addr);
+                // 此后文件由连接负责关闭，名额随之归还
+                FileChannel region = fc;
+                fc = null;
+                queued = true;
+                conn.write(newRegion(region, length));
+            } catch (IOException e) {
+                logger.error("文件传输失败：" + filename + "，传送至：" + conn.getRemoteAddress(), e);
+            } finally {
+                if (!queued) {
+                    activeUploads.decrementAndGet();
+                }
+                if (fc != null) {
+                    try {
+                        fc.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
 
-                byte[] temp = new byte[data.length - Constant.CMD_FILE.length() - 1];
-                System.arraycopy(data, Constant.CMD_FILE.length() + 1, temp, 0, temp.length);
+        private void reply(ByteBuffer frame) {
+            try {
+                send(conn, frame);
+            } catch (IOException e) {
+                logger.error("响应对等方失败：{}", conn.getRemoteAddress());
+            }
+        }
 
-                callback.onFileDownloaded(temp);
-                break;
+        private FileRegion newRegion(FileChannel fc, long length) {
+            FileRegion region;
+            switch (mode) {
+                case ZERO_COPY:
+                    region = new FileRegion(fc, position, length);
+                    break;
+                case DIRECT_BUFFER:
+                    region = new FileRegion(fc, position, length, transferBuffers.acquire());
+                    break;
+                default:
+                    region = new FileRegion(fc, position, length, ByteBuffer.allocate(HEAP_BUFFER_SIZE));
+            }
 
-            default:
-                logger.error("未知的命令");
+            Integer weight = weights.get(conn.getRemoteIP());
+            region.setQuantum(QUANTUM * (weight == null ? 1 : weight));
+            region.setRateLimits((TokenBucket) conn.attachment(), totalLimit);
+            region.setBufferPool(transferBuffers);
+            region.setCloseListener(new Runnable() {
+                @Override
+                public void run() {
+                    activeUploads.decrementAndGet();
+                    latency.record(System.nanoTime() - arrived);
+                }
+            });
+            return region;
         }
     }
 }
@@ -0,0 +1,21 @@
+package com.nov21th.tcp.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 接收文件中一段连续数据的目标，数据按到达顺序依次写入
+ */
+public interface RangeSink {
+
+    /**
+     * 写入chunk中剩余的全部数据，chunk仅在本次调用内有效
+     */
+    void write(ByteBuffer chunk) throws IOException;
+
+    /**
+     * 数据接收结束（包括连接中断）时调用
+     */
+    void close() throws IOException;
+
+}
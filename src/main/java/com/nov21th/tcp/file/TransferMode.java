@@ -0,0 +1,23 @@
+package com.nov21th.tcp.file;
+
+/**
+ * 文件发送方式
+ */
+public enum TransferMode {
+
+    /**
+     * 经由1KB堆内缓冲区逐块读写，即最初的实现
+     */
+    BUFFERED,
+
+    /**
+     * 经由较大的直接缓冲区读写，省去堆内外之间的一次拷贝
+     */
+    DIRECT_BUFFER,
+
+    /**
+     * 使用{@link java.nio.channels.FileChannel#transferTo}由内核直接发送（sendfile），
+     * 平台不支持时退化为{@link #DIRECT_BUFFER}
+     */
+    ZERO_COPY
+}
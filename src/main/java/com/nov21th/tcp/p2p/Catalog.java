@@ -0,0 +1,76 @@
+package com.nov21th.tcp.p2p;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 对等方在本地保存的共享文件目录，通过与中央服务器同步变更保持最新
+ */
+class Catalog {
+
+    private final TreeMap<FileInfo, Set<String>> files = new TreeMap<>(FileIndex.NAME_ORDER);
+
+    /**
+     * 已同步到的中央服务器目录版本
+     */
+    private long version;
+
+    synchronized long getVersion() {
+        return version;
+    }
+
+    synchronized void setVersion(long version) {
+        this.version = version;
+    }
+
+    synchronized int size() {
+        return files.size();
+    }
+
+    /**
+     * 清空目录，准备重新获取完整列表
+     */
+    synchronized void clear() {
+        files.clear();
+        version = 0;
+    }
+
+    /**
+     * 应用一次变更，重复应用同一变更不影响结果
+     */
+    synchronized void apply(boolean added, FileInfo info, String owner) {
+        Set<String> owners = files.get(info);
+        if (added) {
+            if (owners == null) {
+                owners = new HashSet<>();
+                files.put(info, owners);
+            }
+            owners.add(owner);
+        } else if (owners != null) {
+            owners.remove(owner);
+            if (owners.isEmpty()) {
+                files.remove(info);
+            }
+        }
+    }
+
+    /**
+     * 文件名包含keyword的全部文件，按文件名排序
+     *
+     * @param owners 与返回的文件一一对应的拥有者依次追加到其中
+     */
+    synchronized List<FileInfo> search(String keyword, List<List<String>> owners) {
+        List<FileInfo> result = new ArrayList<>();
+        for (Map.Entry<FileInfo, Set<String>> entry : files.entrySet()) {
+            if (keyword.isEmpty() || entry.getKey().getName().contains(keyword)) {
+                result.add(entry.getKey());
+                owners.add(new ArrayList<>(entry.getValue()));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,685 @@
+package com.nov21th.tcp.p2p;
+
+import com.nov21th.tcp.codec.Frame;
+import com.nov21th.tcp.codec.FrameBuilder;
+import com.nov21th.tcp.codec.FrameCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * 中央服务器目录的持久化存储，由预写日志与快照组成，重启后据此恢复共享文件索引与认证列表
+ * <p>
+ * 每次变更先追加到内存缓冲区，由单独的线程批量写入当前日志段并fsync，
+ * 等待写入的请求在同一次fsync后一起返回。日志段超过{@link #SEGMENT_SIZE}后换用新段，
+ * 并在后台写出快照，快照覆盖的日志段随即删除。
+ * <p>
+ * 日志与快照中的每条记录均为一个{@link Frame}，其后附4字节CRC32。
+ * 快照在复制索引的同时仍有变更发生，但复制开始前已写完的日志段中的变更均已反映在其中，
+ * 恢复时从快照之后的日志段开始重放即可，重放已包含在快照中的变更不影响结果。
+ */
+class CatalogStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(CatalogStore.class);
+
+    /**
+     * 单个日志段的大小上限
+     */
+    private static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * 恢复时每次映射的文件区间大小，须大于单条记录的最大长度
+     */
+    private static final long MAP_WINDOW = 256 * 1024 * 1024;
+
+    /**
+     * 快照文件格式版本，格式变化时递增
+     */
+    private static final int SNAPSHOT_FORMAT = 1;
+
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+
+    private static final String LOCK_FILE = "lock";
+
+    private static final String SEGMENT_PREFIX = "wal-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int CRC_LENGTH = 4;
+
+    private static final byte REC_ADD = 1;
+
+    private static final byte REC_REMOVE = 2;
+
+    private static final byte REC_TRUST = 3;
+
+    private static final byte REC_UNTRUST = 4;
+
+    private static final byte REC_SNAPSHOT_HEADER = 10;
+
+    private static final byte REC_SNAPSHOT_FILE = 11;
+
+    private static final byte REC_SNAPSHOT_END = 12;
+
+    private final File dir;
+
+    private final long segmentSize;
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * 待写入的记录，由追加记录的线程填充，写入线程与spare交换后写出
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+
+    /**
+     * 已追加与已fsync的字节数，均自本次启动开始计算
+     */
+    private long appended;
+
+    private long durable;
+
+    /**
+     * 已追加的最后一条变更的版本号
+     */
+    private long appendedVersion;
+
+    private volatile long durableVersion;
+
+    private IOException failure;
+
+    private boolean closed;
+
+    private Thread writer;
+
+    /**
+     * 最近一次启动的快照线程，关闭时等待其结束
+     */
+    private volatile Thread checkpointer;
+
+    private long segment;
+
+    private FileChannel channel;
+
+    /**
+     * 防止多个中央服务器同时使用同一目录
+     */
+    private FileLock lock;
+
+    private final AtomicBoolean checkpointing = new AtomicBoolean();
+
+    private FileIndex index;
+
+    private ChangeLog changeLog;
+
+    private Set<String> trustedClients;
+
+    CatalogStore(File dir) {
+        this(dir, SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize 单个日志段的大小上限，超出后换用新段并写出快照
+     */
+    CatalogStore(File dir, long segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * 从快照与日志中恢复索引、认证列表与目录版本，然后开始记录新的变更
+     * 须在服务器开始处理请求前调用
+     */
+    void open(FileIndex index, ChangeLog changeLog, Set<String> trustedClients) throws IOException {
+        this.index = index;
+        this.changeLog = changeLog;
+        this.trustedClients = trustedClients;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("无法创建目录：" + dir);
+        }
+        lock();
+
+        long start = System.currentTimeMillis();
+        changeLog.beginRestore();
+
+        final long[] state = new long[2];
+        File snapshot = new File(dir, SNAPSHOT_FILE);
+        if (snapshot.exists()) {
+            readSnapshot(snapshot, state);
+        }
+        long covered = state[0];
+        long version = state[1];
+
+        long[] segments = listSegments();
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i] <= covered) {
+                continue;
+            }
+
+            File file = segmentFile(segments[i]);
+            long valid = replaySegment(file, state);
+            version = Math.max(version, state[1]);
+            if (valid < file.length()) {
+                // 崩溃时未写完的记录及其后的日志均无法使用
+                logger.warn("日志段{}在{}字节处损坏，丢弃其后的记录", file.getName(), valid);
+                truncate(file, valid);
+                for (int j = i + 1; j < segments.length; j++) {
+                    Files.delete(segmentFile(segments[j]).toPath());
+                }
+                segments = Arrays.copyOf(segments, i + 1);
+                break;
+            }
+        }
+
+        changeLog.restore(version);
+        durableVersion = version;
+        appendedVersion = version;
+
+        logger.info("目录恢复完毕，共{}个文件，{}个已认证的客户端，版本{}，耗时{}毫秒",
+                index.size(), trustedClients.size(), version, System.currentTimeMillis() - start);
+
+        segment = Math.max(covered, segments.length == 0 ? 0 : segments[segments.length - 1]) + 1;
+        channel = openSegment(segment);
+        changeLog.setStore(this);
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "catalog-wal");
+        writer.setDaemon(true);
+        writer.start();
+
+        // 启动时即写出快照，下次恢复不必再重放本次已重放的日志
+        if (segment > covered + 1) {
+            checkpoint(segment - 1);
+        }
+    }
+
+    /**
+     * 由{@link ChangeLog}在记录变更时调用，与变更的版本顺序一致
+     */
+    synchronized void logChange(long version, boolean added, FileInfo info, String owner) {
+        FrameBuilder record = new FrameBuilder(added ? REC_ADD : REC_REMOVE).putLong(version).putString(owner);
+        putFileInfo(record, info);
+        append(record.build());
+        appendedVersion = version;
+    }
+
+    synchronized void logTrust(boolean trusted, String owner) {
+        append(new FrameBuilder(trusted ? REC_TRUST : REC_UNTRUST).putString(owner).build());
+    }
+
+    /**
+     * 等待此前追加的全部记录写入磁盘
+     *
+     * @throws IOException 写入日志失败
+     */
+    synchronized void sync() throws IOException {
+        long target = appended;
+        boolean interrupted = false;
+        while (durable < target && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw new IOException("目录日志写入失败", failure);
+        }
+    }
+
+    /**
+     * 等待已追加的记录及进行中的快照写完，然后停止写入线程并释放目录锁
+     * 此后的变更不再记录
+     */
+    void close() throws IOException {
+        changeLog.setStore(null);
+        try {
+            sync();
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            join(writer);
+            join(checkpointer);
+            channel.close();
+            lock.release();
+            lock.channel().close();
+        }
+    }
+
+    /**
+     * 已写入磁盘的最后一条变更的版本号，对等方只能同步到该版本，以免看到崩溃后丢失的变更
+     */
+    long getDurableVersion() {
+        return durableVersion;
+    }
+
+    private void append(ByteBuffer record) {
+        if (failure != null) {
+            return;
+        }
+
+        int length = record.remaining() + CRC_LENGTH;
+        if (pending.remaining() < length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + length));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+
+        crc.reset();
+        crc.update(record.duplicate());
+        pending.put(record);
+        pending.putInt((int) crc.getValue());
+
+        appended += length;
+        notifyAll();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            ByteBuffer batch;
+            long batchEnd;
+            long batchVersion;
+            synchronized (this) {
+                while (pending.position() == 0) {
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch = pending;
+                pending = spare;
+                spare = null;
+                batchEnd = appended;
+                batchVersion = appendedVersion;
+            }
+
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                channel.force(false);
+
+                if (channel.size() >= segmentSize) {
+                    channel.close();
+                    channel = openSegment(++segment);
+                    checkpoint(segment - 1);
+                }
+            } catch (IOException e) {
+                logger.error("写入目录日志失败", e);
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+
+            batch.clear();
+            synchronized (this) {
+                spare = batch;
+                durable = batchEnd;
+                durableVersion = batchVersion;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 在后台写出快照，覆盖编号不大于covered的日志段，写出后删除这些日志段
+     * 上一次快照尚未写完时跳过，其日志段留待下一次快照覆盖
+     */
+    private void checkpoint(final long covered) {
+        if (!checkpointing.compareAndSet(false, true)) {
+            return;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeSnapshot(covered);
+                    for (long s : listSegments()) {
+                        if (s <= covered) {
+                            Files.delete(segmentFile(s).toPath());
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.error("写出目录快照失败", e);
+                } finally {
+                    checkpointing.set(false);
+                }
+            }
+        }, "catalog-checkpoint");
+        thread.setDaemon(true);
+        checkpointer = thread;
+        thread.start();
+    }
+
+    private static void join(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeSnapshot(long covered) throws IOException {
+        long start = System.currentTimeMillis();
+
+        // 先取版本号再复制，此前的变更必已反映在复制结果中
+        long version = changeLog.getVersion();
+        List<String> trusted = new ArrayList<>(trustedClients);
+        Map<FileInfo, List<String>> files = index.snapshot();
+
+        File temp = new File(dir, SNAPSHOT_FILE + ".tmp");
+        FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            CRC32 crc = new CRC32();
+
+            write(out, buffer, crc, new FrameBuilder(REC_SNAPSHOT_HEADER)
+                    .putInt(SNAPSHOT_FORMAT).putLong(covered).putLong(version).build());
+            for (String owner : trusted) {
+                write(out, buffer, crc, new FrameBuilder(REC_TRUST).putString(owner).build());
+            }
+            for (Map.Entry<FileInfo, List<String>> entry : files.entrySet()) {
+                FrameBuilder record = new FrameBuilder(REC_SNAPSHOT_FILE);
+                putFileInfo(record, entry.getKey());
+                record.putInt(entry.getValue().size());
+                for (String owner : entry.getValue()) {
+                    record.putString(owner);
+                }
+                write(out, buffer, crc, record.build());
+            }
+            write(out, buffer, crc, new FrameBuilder(REC_SNAPSHOT_END).build());
+
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), new File(dir, SNAPSHOT_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        logger.info("已写出目录快照，共{}个文件，版本{}，耗时{}毫秒", files.size(), version, System.currentTimeMillis() - start);
+    }
+
+    private static void write(FileChannel out, ByteBuffer buffer, CRC32 crc, ByteBuffer record) throws IOException {
+        if (buffer.remaining() < record.remaining() + CRC_LENGTH) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        crc.reset();
+        crc.update(record.duplicate());
+        if (buffer.remaining() < record.remaining() + CRC_LENGTH) {
+            // 超出缓冲区的记录直接写出
+            while (record.hasRemaining()) {
+                out.write(record);
+            }
+            ByteBuffer checksum = ByteBuffer.allocate(CRC_LENGTH).putInt(0, (int) crc.getValue());
+            while (checksum.hasRemaining()) {
+                out.write(checksum);
+            }
+        } else {
+            buffer.put(record);
+            buffer.putInt((int) crc.getValue());
+        }
+    }
+
+    /**
+     * @param state 读出快照覆盖的日志段编号与目录版本
+     */
+    private void readSnapshot(File file, final long[] state) throws IOException {
+        final boolean[] complete = new boolean[1];
+        readRecords(file, new RecordHandler() {
+            @Override
+            public void handle(Frame record) throws IOException {
+                switch (record.getOpcode()) {
+                    case REC_SNAPSHOT_HEADER:
+                        if (record.getInt() != SNAPSHOT_FORMAT) {
+                            throw new IOException("不支持的快照格式");
+                        }
+                        state[0] = record.getLong();
+                        state[1] = record.getLong();
+                        break;
+                    case REC_TRUST:
+                        trustedClients.add(record.getString());
+                        break;
+                    case REC_SNAPSHOT_FILE:
+                        FileInfo info = readFileInfo(record);
+                        int ownerCount = record.getCount(Frame.MIN_STRING_LENGTH);
+                        for (int i = 0; i < ownerCount; i++) {
+                            index.add(info, record.getString());
+                        }
+                        break;
+                    case REC_SNAPSHOT_END:
+                        complete[0] = true;
+                        break;
+                    default:
+                        throw new IOException("未知的快照记录：" + record.getOpcode());
+                }
+            }
+        });
+
+        // 快照整体写完后才替换旧快照，不完整说明文件已损坏
+        if (!complete[0]) {
+            throw new IOException("目录快照已损坏：" + file);
+        }
+    }
+
+    /**
+     * @param state 重放过程中将state[1]更新为遇到的最大版本号
+     * @return 有效记录的总长度
+     */
+    private long replaySegment(File file, final long[] state) throws IOException {
+        return readRecords(file, new RecordHandler() {
+            @Override
+            public void handle(Frame record) throws IOException {
+                switch (record.getOpcode()) {
+                    case REC_ADD:
+                    case REC_REMOVE:
+                        state[1] = Math.max(state[1], record.getLong());
+                        String owner = record.getString();
+                        FileInfo info = readFileInfo(record);
+                        if (record.getOpcode() == REC_ADD) {
+                            index.add(info, owner);
+                        } else {
+                            index.remove(info, owner);
+                        }
+                        break;
+                    case REC_TRUST:
+                        trustedClients.add(record.getString());
+                        break;
+                    case REC_UNTRUST:
+                        trustedClients.remove(record.getString());
+                        break;
+                    default:
+                        throw new IOException("未知的日志记录：" + record.getOpcode());
+                }
+            }
+        });
+    }
+
+    /**
+     * 逐段映射file并依次处理其中的记录，遇到不完整或校验失败的记录即停止
+     *
+     * @return 有效记录的总长度
+     */
+    private static long readRecords(File file, RecordHandler handler) throws IOException {
+        FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            CRC32 crc = new CRC32();
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long window = Math.min(size - position, MAP_WINDOW);
+                MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, position, window);
+
+                while (buffer.remaining() >= FrameCodec.HEADER_LENGTH + CRC_LENGTH) {
+                    int start = buffer.position();
+                    int length = buffer.getInt(start + 1);
+                    if (length < 0 || length > FrameCodec.DEFAULT_MAX_FRAME_LENGTH) {
+                        return position + start;
+                    }
+
+                    int end = start + FrameCodec.HEADER_LENGTH + length;
+                    if (buffer.limit() - end < CRC_LENGTH) {
+                        break;
+                    }
+
+                    ByteBuffer frame = buffer.duplicate();
+                    frame.limit(end);
+                    crc.reset();
+                    crc.update(frame);
+                    if ((int) crc.getValue() != buffer.getInt(end)) {
+                        return position + start;
+                    }
+
+                    ByteBuffer payload = buffer.duplicate();
+                    payload.limit(end).position(start + FrameCodec.HEADER_LENGTH);
+                    handler.handle(new Frame(buffer.get(start), payload.slice()));
+
+                    buffer.position(end + CRC_LENGTH);
+                }
+
+                if (position + window == size) {
+                    return position + buffer.position();
+                }
+                position += buffer.position();
+            }
+            return position;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void putFileInfo(FrameBuilder record, FileInfo info) {
+        record.putString(info.getName());
+        record.putHash(info.getHash());
+        record.putLong(info.getSize());
+        List<String> pieceHashes = info.getPieceHashes();
+        record.putInt(pieceHashes.size());
+        for (String pieceHash : pieceHashes) {
+            record.putHash(pieceHash);
+        }
+    }
+
+    private static FileInfo readFileInfo(Frame record) {
+        FileInfo info = new FileInfo(record.getString(), record.getHash(), record.getLong());
+        int pieceCount = record.getCount(Frame.MIN_HASH_LENGTH);
+        List<String> pieceHashes = new ArrayList<>(pieceCount);
+        for (int i = 0; i < pieceCount; i++) {
+            pieceHashes.add(record.getHash());
+        }
+        info.setPieceHashes(pieceHashes);
+        return info;
+    }
+
+    private void lock() throws IOException {
+        FileChannel channel = FileChannel.open(new File(dir, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException("目录已被其他中央服务器使用：" + dir);
+        }
+    }
+
+    private FileChannel openSegment(long segment) throws IOException {
+        return FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private File segmentFile(long segment) {
+        return new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * 目录中全部日志段的编号，按编号升序排列
+     */
+    private long[] listSegments() {
+        String[] names = dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+
+        long[] segments = new long[names == null ? 0 : names.length];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = Long.parseLong(names[i].substring(SEGMENT_PREFIX.length(), names[i].length() - SEGMENT_SUFFIX.length()));
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static void truncate(File file, long size) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        try {
+            channel.truncate(size);
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private interface RecordHandler {
+
+        void handle(Frame record) throws IOException;
+    }
+}
@@ -1,36 +1,223 @@
 package com.nov21th.tcp.p2p;
 
 import com.nov21th.common.Constant;
-import com.nov21th.tcp.TCPServer;
-import com.nov21th.util.IPUtil;
+import com.nov21th.metrics.Counter;
+import com.nov21th.metrics.Gauge;
+import com.nov21th.metrics.Histogram;
+import com.nov21th.metrics.MetricsEndpoint;
+import com.nov21th.tcp.Connection;
+import com.nov21th.tcp.FrameServer;
+import com.nov21th.tcp.ServerMode;
+import com.nov21th.tcp.codec.Frame;
+import com.nov21th.tcp.codec.FrameBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by GuoYonghui on 2017/6/29.
  */
-public class CentralServer extends TCPServer {
+public class CentralServer extends FrameServer {
 
-    private Map<FileInfo, Set<String>> availableMap;
+    /**
+     * 最多保留的目录变更数
+     */
+    private static final int CHANGE_LOG_CAPACITY = 1000000;
 
-    private List<String> trustedClients;
+    /**
+     * 单次同步最多返回的变更数
+     */
+    private static final int MAX_SYNC_CHANGES = 10000;
+
+    /**
+     * 列表与同步响应的大致大小上限，大文件的分块摘要较多，超出后提前结束本次响应
+     */
+    private static final int MAX_RESPONSE_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * 共享请求的最大长度，对等方每批约4MB，单个大文件的分块摘要可能更多
+     */
+    private static final int MAX_ANNOUNCE_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * 其余请求只含少量定长字段，超出该长度即视为异常连接
+     */
+    private static final int MAX_CONTROL_LENGTH = 4 * 1024;
+
+    /**
+     * 共享请求中一个文件至少占用的字节数：文件名、校验码、大小与块数
+     */
+    private static final int MIN_FILE_INFO_LENGTH = Frame.MIN_STRING_LENGTH + Frame.MIN_HASH_LENGTH + 8 + 4;
+
+    private final ChangeLog changeLog = new ChangeLog(CHANGE_LOG_CAPACITY);
+
+    /**
+     * 请求在多个线程中并发处理，索引与认证列表均可并发访问
+     */
+    private final FileIndex index = new FileIndex(changeLog);
+
+    /**
+     * 文件列表每页的默认数量与最大数量
+     */
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * 单次列表查询最多检查的文件数
+     */
+    private static final int MAX_SCAN = 20000;
+
+    /**
+     * 已认证的对等方，以"IP:端口"标识，认证时保存在连接上
+     */
+    private final Set<String> trustedClients = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * 为null时目录只保存在内存中
+     */
+    private CatalogStore store;
+
+    /**
+     * 对等方的默认租约时长，对等方应在此期间内至少发出一次请求或心跳
+     */
+    private static final long DEFAULT_LEASE_TIMEOUT = 30000;
+
+    /**
+     * 检查租约到期的时间间隔
+     */
+    private static final long LEASE_TICK = 1000;
+
+    private long leaseTimeout = DEFAULT_LEASE_TIMEOUT;
+
+    private LeaseWheel leases;
+
+    /**
+     * 各命令从收到请求到发出响应的耗时，以操作码为下标，未知的命令计入other
+     */
+    private final Histogram[] latencies = new Histogram[256];
+
+    private final Counter failedRequests = getMetrics().counter("request.failed");
 
     public CentralServer(int port) {
         super(port);
 
-        availableMap = new HashMap<>();
-        trustedClients = new ArrayList<>();
+        initMetrics();
     }
 
     public CentralServer(int port, int bufferSize) {
         super(port, bufferSize);
 
-        availableMap = new HashMap<>();
-        trustedClients = new ArrayList<>();
+        initMetrics();
+    }
+
+    private void initMetrics() {
+        Histogram other = getMetrics().histogram("request.other");
+        Arrays.fill(latencies, other);
+        latencies[Constant.OP_CONNECT] = getMetrics().histogram("request.connect");
+        latencies[Constant.OP_ADD] = getMetrics().histogram("request.add");
+        latencies[Constant.OP_ADD_ALL] = getMetrics().histogram("request.add_all");
+        latencies[Constant.OP_LIST] = getMetrics().histogram("request.list");
+        latencies[Constant.OP_SYNC] = getMetrics().histogram("request.sync");
+        latencies[Constant.OP_HEARTBEAT] = getMetrics().histogram("request.heartbeat");
+        latencies[Constant.OP_QUIT] = getMetrics().histogram("request.quit");
+
+        getMetrics().gauge("catalog.files", new Gauge() {
+            @Override
+            public long getValue() {
+                return index.size();
+            }
+        });
+        getMetrics().gauge("catalog.peers", new Gauge() {
+            @Override
+            public long getValue() {
+                return trustedClients.size();
+            }
+        });
+        getMetrics().gauge("catalog.version", new Gauge() {
+            @Override
+            public long getValue() {
+                return changeLog.getVersion();
+            }
+        });
+    }
+
+    /**
+     * 设置保存目录日志与快照的目录，启动时从中恢复目录，需在启动前设置
+     */
+    public void setDataDir(String dataDir) {
+        this.store = new CatalogStore(new File(dataDir));
+    }
+
+    /**
+     * 设置对等方的租约时长，需在启动前设置
+     */
+    public void setLeaseTimeout(long leaseTimeout) {
+        if (leaseTimeout < LEASE_TICK) {
+            throw new IllegalArgumentException("租约时长不能小于" + LEASE_TICK + "毫秒");
+        }
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    @Override
+    public void run() {
+        if (store != null) {
+            try {
+                store.open(index, changeLog, trustedClients);
+            } catch (IOException e) {
+                logger.error("恢复目录失败", e);
+                return;
+            }
+        }
+        startLeases();
+        super.run();
+    }
+
+    /**
+     * 为已有的对等方（恢复自磁盘）发放租约，并定期移除租约到期的对等方
+     */
+    private void startLeases() {
+        long now = System.currentTimeMillis();
+        leases = new LeaseWheel(leaseTimeout, LEASE_TICK, now);
+        for (String owner : trustedClients) {
+            leases.renew(owner, now);
+        }
+        for (String owner : index.owners()) {
+            leases.renew(owner, now);
+        }
+
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, getName() + "-lease");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (String owner : leases.expire(System.currentTimeMillis())) {
+                        // 到期后又发来请求的对等方已重新取得租约
+                        if (!leases.isLeased(owner)) {
+                            logger.info("对等方租约到期：{}", owner);
+                            evict(owner);
+                        }
+                    }
+                } catch (Exception e) {
+                    logger.error("移除租约到期的对等方时发生异常", e);
+                }
+            }
+        }, LEASE_TICK, LEASE_TICK, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -39,130 +226,338 @@ public class CentralServer extends TCPServer {
     }
 
     @Override
-    protected void onDataReceived(SelectionKey sk, byte[] data) throws Exception {
-        String msg = new String(data, "UTF-8").trim();
-
-        SocketChannel sc = (SocketChannel) sk.channel();
-        if (msg.startsWith(Constant.CMD_CONNECT)) {
-            doConnect(sc);
-        } else if (msg.startsWith(Constant.CMD_QUIT)) {
-            doQuit(sc);
-        } else {
-            String ip = IPUtil.extractIP(sc.getRemoteAddress());
-            if (!isClientTrustful(ip)) {
-                logger.error("客户端未与服务器进行认证：{}", ip);
-
-                responseToClient(sc, Constant.CMD_ERROR + "\n未与服务器进行身份认证");
-                return;
-            }
+    protected int getMaxFrameLength(byte opcode) {
+        return opcode == Constant.OP_ADD || opcode == Constant.OP_ADD_ALL ? MAX_ANNOUNCE_LENGTH : MAX_CONTROL_LENGTH;
+    }
 
-            if (msg.startsWith(Constant.CMD_ADD)) {
-                doAdd(sc, msg);
-            } else if (msg.startsWith(Constant.CMD_LIST)) {
-                doList(sc);
-            } else {
-                logger.error("未知的命令");
+    @Override
+    protected void onFrame(final Connection conn, Frame frame) throws Exception {
+        final Frame request = frame.copy();
+        final long arrived = System.nanoTime();
+
+        execute(conn, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handle(conn, request);
+                } catch (Exception e) {
+                    failedRequests.inc();
+                    logger.error("处理请求时发生异常：" + conn.getRemoteIP(), e);
+                } finally {
+                    latencies[request.getOpcode() & 0xFF].record(System.nanoTime() - arrived);
+                }
             }
+        });
+    }
+
+    private void handle(Connection conn, Frame request) throws Exception {
+        int id = request.getInt();
+
+        switch (request.getOpcode()) {
+            case Constant.OP_CONNECT:
+                doConnect(conn, id, request);
+                return;
+            case Constant.OP_QUIT:
+                doQuit(conn, id);
+                return;
+            default:
+                break;
+        }
+
+        String owner = ownerOf(conn);
+        if (owner == null || !isClientTrustful(owner)) {
+            logger.error("客户端未与服务器进行认证：{}", conn.getRemoteAddress());
+
+            responseToClient(conn, response(Constant.OP_ERROR, id).putString("未与服务器进行身份认证"));
+            return;
+        }
+        leases.renew(owner, System.currentTimeMillis());
+
+        switch (request.getOpcode()) {
+            case Constant.OP_ADD:
+                doAdd(conn, id, request);
+                break;
+            case Constant.OP_ADD_ALL:
+                doAddAll(conn, id, request);
+                break;
+            case Constant.OP_LIST:
+                doList(conn, id, request);
+                break;
+            case Constant.OP_SYNC:
+                doSync(conn, id, request);
+                break;
+            case Constant.OP_HEARTBEAT:
+                responseToClient(conn, response(Constant.OP_OK, id)
+                        .putInt((int) leases.getTimeout())
+                        .putInt(index.countByOwner(owner)));
+                break;
+            default:
+                logger.error("未知的命令：{}", request.getOpcode());
+
+                responseToClient(conn, response(Constant.OP_ERROR, id).putString("未知的命令"));
         }
     }
 
-    private void doConnect(SocketChannel sc) throws Exception {
-        String ip = IPUtil.extractIP(sc.getRemoteAddress());
+    /**
+     * 以"IP:端口"标识对等方，未带端口的旧版客户端使用默认端口
+     */
+    private void doConnect(Connection conn, int id, Frame request) throws Exception {
+        int port = request.hasRemaining() ? request.getInt() : Constant.DEFAULT_PEER_PORT;
+        String owner = conn.getRemoteIP() + ":" + port;
 
-        logger.info("客户端请求认证，来自：{}", ip);
+        eventLogger.info("客户端请求认证，来自：{}", owner);
 
-        responseToClient(sc, Constant.CMD_ACCEPT);
+        conn.attach(owner);
+        trustedClients.add(owner);
+        leases.renew(owner, System.currentTimeMillis());
+        if (store != null) {
+            store.logTrust(true, owner);
+        }
+        awaitDurable();
 
-        trustedClients.add(ip);
+        responseToClient(conn, response(Constant.OP_ACCEPT, id).putInt((int) leases.getTimeout()));
     }
 
-    private void doAdd(SocketChannel sc, String msg) throws Exception {
-        String ip = IPUtil.extractIP(sc.getRemoteAddress());
+    private void doAdd(Connection conn, int id, Frame request) throws Exception {
+        String owner = ownerOf(conn);
 
-        String[] detail = msg.split("\n")[1].split("\t");
-        FileInfo info = new FileInfo();
-        info.setName(detail[0]);
-        info.setHash(detail[1]);
-        info.setSize(Integer.parseInt(detail[2]));
+        FileInfo info = readFileInfo(request);
+
+        eventLogger.info("客户端请求共享文件，来自：{}，文件名：{}，大小：{}字节，校验码：{}", owner, info.getName(), info.getSize(), info.getHash());
+
+        index.add(info, owner);
+        awaitDurable();
+
+        responseToClient(conn, response(Constant.OP_OK, id));
+    }
+
+    /**
+     * 一次加入一批文件，先解码全部文件再更新索引
+     */
+    private void doAddAll(Connection conn, int id, Frame request) throws Exception {
+        String owner = ownerOf(conn);
+
+        int count = request.getCount(MIN_FILE_INFO_LENGTH);
+        List<FileInfo> infos = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            infos.add(readFileInfo(request));
+        }
 
-        logger.info("客户端请求共享文件，来自：{}，文件名：{}，大小：{}字节，MD5：{}", ip, info.getName(), info.getSize(), info.getHash());
+        eventLogger.info("客户端请求批量共享文件，来自：{}，文件数：{}", owner, count);
 
-        Set<String> owners = availableMap.get(info);
-        if (owners == null) {
-            owners = new HashSet<>();
-            availableMap.put(info, owners);
+        for (FileInfo info : infos) {
+            index.add(info, owner);
         }
-        owners.add(ip);
+        awaitDurable();
 
-        responseToClient(sc, Constant.CMD_OK);
+        responseToClient(conn, response(Constant.OP_OK, id).putInt(count));
     }
 
-    private void doList(SocketChannel sc) throws Exception {
-        String ip = IPUtil.extractIP(sc.getRemoteAddress());
+    private FileInfo readFileInfo(Frame request) {
+        FileInfo info = new FileInfo();
+        info.setName(request.getString());
+        info.setHash(request.getHash());
+        info.setSize(request.getLong());
+        int pieceCount = request.getCount(Frame.MIN_HASH_LENGTH);
+        List<String> pieceHashes = new ArrayList<>(pieceCount);
+        for (int i = 0; i < pieceCount; i++) {
+            pieceHashes.add(request.getHash());
+        }
+        info.setPieceHashes(pieceHashes);
+        return info;
+    }
+
+    private void doList(Connection conn, int id, Frame request) throws Exception {
+        ListQuery query = ListQuery.readFrom(request);
+        int limit = query.getLimit() <= 0 ? DEFAULT_PAGE_SIZE : Math.min(query.getLimit(), MAX_PAGE_SIZE);
+
+        FileIndex.Page page = index.query(query, limit, MAX_SCAN);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("客户端请求下载共享文件列表，客户端：{}，返回{}个文件", ownerOf(conn), page.files.size());
+        }
 
-        logger.info("客户端请求下载共享文件列表，客户端：{}", ip);
+        FrameBuilder response = new FrameBuilder(Constant.OP_OK, page.files.size() * 64).putInt(id);
+        putPage(response, page);
 
-        StringBuilder sb = new StringBuilder();
-        sb.append(Constant.CMD_OK);
-        for (FileInfo info : availableMap.keySet()) {
-            Set<String> owners = availableMap.get(info);
-            sb.append('\n');
-            sb.append(info.getName());
-            sb.append('\t');
-            sb.append(info.getHash());
-            sb.append('\t');
-            sb.append(info.getSize());
-            sb.append('\t');
-            int i = 0;
+        responseToClient(conn, response);
+    }
+
+    /**
+     * 将一页文件及游标写入LIST响应，响应超出{@link #MAX_RESPONSE_BYTES}时提前结束本页，游标改为最后写入的文件
+     */
+    static void putPage(FrameBuilder response, FileIndex.Page page) {
+        int countAt = response.size();
+        response.putInt(page.files.size());
+        FileInfo cursor = page.cursor;
+        for (int i = 0; i < page.files.size(); i++) {
+            FileInfo info = page.files.get(i);
+            response.putString(info.getName());
+            response.putHash(info.getHash());
+            response.putLong(info.getSize());
+
+            List<String> owners = page.owners.get(i);
+            response.putInt(owners.size());
             for (String owner : owners) {
-                sb.append(owner);
-                if (++i != owners.size()) {
-                    sb.append('/');
+                response.putString(owner);
+            }
+
+            List<String> pieceHashes = info.getPieceHashes();
+            response.putInt(pieceHashes.size());
+            for (String pieceHash : pieceHashes) {
+                response.putHash(pieceHash);
+            }
+
+            if (response.size() >= MAX_RESPONSE_BYTES && i < page.files.size() - 1) {
+                response.putInt(countAt, i + 1);
+                cursor = info;
+                break;
+            }
+        }
+
+        response.putInt(cursor == null ? 0 : 1);
+        if (cursor != null) {
+            response.putString(cursor.getName());
+            response.putHash(cursor.getHash());
+            response.putLong(cursor.getSize());
+        }
+    }
+
+    /**
+     * 返回对等方已知版本之后的目录变更，变更记录已不完整时通知对等方重新获取完整列表
+     */
+    private void doSync(Connection conn, int id, Frame request) throws Exception {
+        long since = request.getLong();
+
+        // 先取版本号再取完整列表，列表中可能已包含此后的变更，对等方从该版本开始重放变更即可
+        long version = changeLog.getVersion();
+        List<ChangeLog.Change> changes = changeLog.since(since, MAX_SYNC_CHANGES);
+
+        FrameBuilder response = response(Constant.OP_OK, id);
+        if (changes == null) {
+            response.putLong(version);
+            response.putInt(1);
+            responseToClient(conn, response);
+            return;
+        }
+
+        int versionAt = response.size();
+        response.putLong(since);
+        response.putInt(0);
+        int countAt = response.size();
+        response.putInt(0);
+
+        int count = 0;
+        boolean more = changes.size() == MAX_SYNC_CHANGES;
+        for (ChangeLog.Change change : changes) {
+            if (response.size() >= MAX_RESPONSE_BYTES) {
+                more = true;
+                break;
+            }
+
+            response.putInt(change.added ? 1 : 0);
+            response.putString(change.owner);
+            response.putString(change.info.getName());
+            response.putHash(change.info.getHash());
+            response.putLong(change.info.getSize());
+            if (change.added) {
+                List<String> pieceHashes = change.info.getPieceHashes();
+                response.putInt(pieceHashes.size());
+                for (String pieceHash : pieceHashes) {
+                    response.putHash(pieceHash);
                 }
             }
+
+            response.putLong(versionAt, change.version);
+            response.putInt(countAt, ++count);
         }
+        response.putInt(more ? 1 : 0);
 
-        responseToClient(sc, sb.toString());
+        responseToClient(conn, response);
     }
 
-    private void doQuit(SocketChannel sc) throws Exception {
-        String ip = IPUtil.extractIP(sc.getRemoteAddress());
+    private void doQuit(Connection conn, int id) throws Exception {
+        String owner = ownerOf(conn);
+        if (owner != null) {
+            eventLogger.info("客户端退出P2P网络：{}", owner);
 
-        logger.info("客户端退出P2P网络：{}", ip);
+            conn.attach(null);
+            leases.cancel(owner);
+            evict(owner);
+            awaitDurable();
+        }
 
-        trustedClients.remove(ip);
-        Iterator<FileInfo> iterator = availableMap.keySet().iterator();
-        while (iterator.hasNext()) {
-            FileInfo info = iterator.next();
-            Set<String> owners = availableMap.get(info);
+        responseToClient(conn, response(Constant.OP_OK, id));
+    }
 
-            if (owners != null && owners.contains(ip)) {
-                owners.remove(ip);
-            }
-            if (owners == null || owners.size() == 0) {
-                iterator.remove();
-            }
+    /**
+     * 撤销对等方的认证并移除其共享的全部文件
+     */
+    private void evict(String owner) {
+        trustedClients.remove(owner);
+        int removed = index.removeOwner(owner);
+        if (store != null) {
+            store.logTrust(false, owner);
         }
+
+        logger.info("已移除{}共享的{}个文件", owner, removed);
     }
 
-    private void responseToClient(SocketChannel sc, String msg) throws Exception {
-        buffer.clear();
-        buffer.put(msg.getBytes("UTF-8"));
-        buffer.flip();
+    /**
+     * 创建响应，负载以请求中的请求号开头
+     */
+    private FrameBuilder response(byte opcode, int id) {
+        return new FrameBuilder(opcode).putInt(id);
+    }
+
+    private void responseToClient(Connection conn, FrameBuilder response) throws Exception {
+        send(conn, response.build());
+    }
 
-        while (buffer.hasRemaining()) {
-            sc.write(buffer);
+    /**
+     * 等待本次请求造成的变更写入磁盘后再响应
+     */
+    private void awaitDurable() throws IOException {
+        if (store != null) {
+            store.sync();
         }
+    }
 
-        buffer.clear();
+    private boolean isClientTrustful(String owner) {
+        return trustedClients.contains(owner);
     }
 
-    private boolean isClientTrustful(String ip) {
-        return trustedClients.contains(ip);
+    /**
+     * 连接上已认证的对等方标识，未认证时为null
+     */
+    private String ownerOf(Connection conn) {
+        return (String) conn.attachment();
     }
 
     public static void main(String[] args) {
-        new CentralServer(Integer.parseInt(args[0])).start();
+        CentralServer server = new CentralServer(Integer.parseInt(args[0]));
+        if (args.length > 1) {
+            server.setReactorCount(Integer.parseInt(args[1]));
+        }
+        if (args.length > 2) {
+            server.setDataDir(args[2]);
+        }
+        String serverMode = System.getProperty("p2p.serverMode");
+        if (serverMode != null) {
+            server.setServerMode(ServerMode.valueOf(serverMode.toUpperCase()));
+        }
+        server.start();
+
+        String metricsPort = System.getProperty("p2p.metricsPort");
+        if (metricsPort != null) {
+            MetricsEndpoint endpoint = new MetricsEndpoint(Integer.parseInt(metricsPort));
+            endpoint.add(server.getMetrics());
+            try {
+                endpoint.start();
+            } catch (IOException e) {
+                LoggerFactory.getLogger(CentralServer.class).error("启动指标端点失败", e);
+            }
+        }
     }
 
 }
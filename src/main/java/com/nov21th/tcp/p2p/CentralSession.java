@@ -0,0 +1,220 @@
+package com.nov21th.tcp.p2p;
+
+import com.nov21th.common.Constant;
+import com.nov21th.tcp.codec.Frame;
+import com.nov21th.tcp.codec.FrameBuilder;
+import com.nov21th.tcp.codec.FrameCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 与中央服务器之间的长连接，所有请求复用同一连接
+ * <p>
+ * 每个请求的负载以请求号开头，中央服务器在响应中原样带回，
+ * 因此可以连续发出多个请求而不必等待前一个的响应。
+ * 连接断开时尚未收到响应的请求以异常结束，下一个请求发出前自动重连，
+ * 此前已认证过的会话在重连后先重新认证。
+ */
+class CentralSession {
+
+    private static final Logger logger = LoggerFactory.getLogger(CentralSession.class);
+
+    /**
+     * 重连的最大尝试次数
+     */
+    private static final int MAX_RECONNECT_ATTEMPTS = 3;
+
+    /**
+     * 首次重连前的等待时间，此后每次加倍
+     */
+    private static final long RECONNECT_BACKOFF = 500;
+
+    private final SocketAddress addr;
+
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * 当前连接上等待响应的请求，每次重连时换新
+     */
+    private Map<Integer, CompletableFuture<Frame>> pending;
+
+    private SocketChannel channel;
+
+    /**
+     * 最近一次发出的认证请求，重连后原样重发，为null表示未认证
+     */
+    private ByteBuffer connectRequest;
+
+    private boolean closed;
+
+    CentralSession(SocketAddress addr) {
+        this.addr = addr;
+    }
+
+    /**
+     * 创建一个请求，负载开头预留请求号，由{@link #request(FrameBuilder)}填入
+     */
+    static FrameBuilder newRequest(byte opcode) {
+        return new FrameBuilder(opcode).putInt(0);
+    }
+
+    /**
+     * 发出请求，不等待响应
+     *
+     * @param request 由{@link #newRequest(byte)}创建的请求
+     * @return 收到响应时完成，响应负载中的请求号已被读出
+     */
+    CompletableFuture<Frame> request(FrameBuilder request) throws IOException {
+        ByteBuffer frame = request.build();
+        byte opcode = frame.get(0);
+
+        synchronized (this) {
+            ensureConnected();
+
+            int id = nextId.incrementAndGet();
+            frame.putInt(FrameCodec.HEADER_LENGTH, id);
+
+            CompletableFuture<Frame> future = new CompletableFuture<>();
+            pending.put(id, future);
+            try {
+                FrameCodec.writeFrame(channel, frame);
+            } catch (IOException e) {
+                pending.remove(id);
+                disconnect(channel, e);
+                throw e;
+            }
+
+            if (opcode == Constant.OP_CONNECT) {
+                connectRequest = frame;
+            } else if (opcode == Constant.OP_QUIT) {
+                connectRequest = null;
+            }
+            return future;
+        }
+    }
+
+    /**
+     * 关闭连接，尚未收到响应的请求以异常结束
+     */
+    void close() {
+        SocketChannel ch;
+        synchronized (this) {
+            closed = true;
+            ch = channel;
+        }
+        if (ch != null) {
+            disconnect(ch, new IOException("会话已关闭"));
+        }
+    }
+
+    private void ensureConnected() throws IOException {
+        if (closed) {
+            throw new IOException("会话已关闭");
+        }
+        if (channel != null) {
+            return;
+        }
+
+        IOException last = null;
+        long backoff = RECONNECT_BACKOFF;
+        for (int attempt = 0; attempt < MAX_RECONNECT_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                logger.info("{}毫秒后重新连接中央服务器", backoff);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("连接中央服务器时被中断");
+                }
+                backoff *= 2;
+            }
+
+            try {
+                SocketChannel ch = SocketChannel.open(addr);
+                ch.configureBlocking(true);
+                channel = ch;
+                pending = new ConcurrentHashMap<>();
+                startReader(ch, pending);
+                break;
+            } catch (IOException e) {
+                last = e;
+            }
+        }
+        if (channel == null) {
+            throw last;
+        }
+
+        if (connectRequest != null) {
+            // 中央服务器按连接上的认证识别客户端，重连后先重新认证
+            logger.info("已重新连接中央服务器，重新进行身份认证");
+
+            int id = nextId.incrementAndGet();
+            ByteBuffer frame = connectRequest.duplicate();
+            frame.rewind();
+            frame.putInt(FrameCodec.HEADER_LENGTH, id);
+            pending.put(id, new CompletableFuture<Frame>());
+            FrameCodec.writeFrame(channel, frame);
+        }
+    }
+
+    private void startReader(final SocketChannel ch, final Map<Integer, CompletableFuture<Frame>> pending) {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Frame response;
+                    while ((response = FrameCodec.readFrame(ch)) != null) {
+                        CompletableFuture<Frame> future = pending.remove(response.getInt());
+                        if (future != null) {
+                            future.complete(response);
+                        } else {
+                            logger.error("收到未知请求的响应：{}", response.getOpcode());
+                        }
+                    }
+                    disconnect(ch, new IOException("中央服务器关闭了连接"));
+                } catch (IOException e) {
+                    disconnect(ch, e);
+                }
+            }
+        }, "central-session");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void disconnect(SocketChannel ch, IOException cause) {
+        Map<Integer, CompletableFuture<Frame>> failed;
+        synchronized (this) {
+            if (channel != ch) {
+                return;
+            }
+            channel = null;
+            failed = pending;
+            pending = null;
+        }
+
+        try {
+            ch.close();
+        } catch (IOException ignored) {
+        }
+
+        if (!closed) {
+            logger.error("与中央服务器的连接断开：{}", cause.getMessage());
+        }
+
+        for (Integer id : failed.keySet()) {
+            CompletableFuture<Frame> future = failed.remove(id);
+            if (future != null) {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+}
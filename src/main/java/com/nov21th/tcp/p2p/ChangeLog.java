@@ -0,0 +1,127 @@
+package com.nov21th.tcp.p2p;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 共享文件索引的变更记录，每次变更使目录版本号加一
+ * <p>
+ * 只保留最近的若干条变更，对等方据此只同步自己的版本之后的变更；
+ * 对等方的版本早于保留的最早变更时，只能重新获取完整的列表。
+ */
+class ChangeLog {
+
+    /**
+     * 一次变更：某个拥有者共享或不再共享某个文件
+     */
+    static class Change {
+
+        final long version;
+
+        final boolean added;
+
+        final FileInfo info;
+
+        final String owner;
+
+        Change(long version, boolean added, FileInfo info, String owner) {
+            this.version = version;
+            this.added = added;
+            this.info = info;
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * 版本号连续，版本号为v的变更保存在ring[v % ring.length]处
+     */
+    private final Change[] ring;
+
+    private long version;
+
+    /**
+     * 保留的最早变更的版本号下限，恢复目录后此前的变更均不在记录中
+     */
+    private long first = 1;
+
+    /**
+     * 不为null时每次变更同时写入其中，对等方只能看到已写入磁盘的变更
+     */
+    private CatalogStore store;
+
+    /**
+     * 恢复期间的变更只推进版本号，不保留在记录中
+     */
+    private boolean restoring;
+
+    /**
+     * @param capacity 最多保留的变更数
+     */
+    ChangeLog(int capacity) {
+        this.ring = new Change[capacity];
+    }
+
+    synchronized void setStore(CatalogStore store) {
+        this.store = store;
+    }
+
+    /**
+     * 开始从持久化存储中恢复目录
+     */
+    synchronized void beginRestore() {
+        restoring = true;
+    }
+
+    /**
+     * 恢复目录完毕，从version继续编号，此前的变更不再保留
+     */
+    synchronized void restore(long version) {
+        this.restoring = false;
+        this.version = version;
+        this.first = version + 1;
+        Arrays.fill(ring, null);
+    }
+
+    /**
+     * 对等方可见的最新版本
+     */
+    synchronized long getVersion() {
+        return store == null ? version : Math.min(version, store.getDurableVersion());
+    }
+
+    /**
+     * 记录一次变更，返回变更后的版本号
+     */
+    synchronized long append(boolean added, FileInfo info, String owner) {
+        version++;
+        if (restoring) {
+            return version;
+        }
+        ring[(int) (version % ring.length)] = new Change(version, added, info, owner);
+        if (store != null) {
+            store.logChange(version, added, info, owner);
+        }
+        return version;
+    }
+
+    /**
+     * 从since之后的变更开始，按版本顺序最多返回limit条
+     *
+     * @return since之后的部分变更已被丢弃，或since不是有效的版本（如中央服务器重启后）时返回null
+     */
+    synchronized List<Change> since(long since, int limit) {
+        long latest = getVersion();
+        long oldest = Math.max(first, version - ring.length + 1);
+        if (since < oldest - 1 || since > latest) {
+            return null;
+        }
+
+        long end = Math.min(latest, since + limit);
+        List<Change> result = new ArrayList<>((int) (end - since));
+        for (long v = since + 1; v <= end; v++) {
+            result.add(ring[(int) (v % ring.length)]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,267 @@
+package com.nov21th.tcp.p2p;
+
+import com.nov21th.common.Constant;
+import com.nov21th.tcp.codec.Frame;
+import com.nov21th.tcp.codec.FrameBuilder;
+import com.nov21th.tcp.file.RangeSink;
+import com.nov21th.util.MerkleTree;
+import com.nov21th.util.VirtualThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 管理对等方进行中的下载
+ * <p>
+ * 每个下载对应一个{@link CompletableFuture}，在下载线程池中执行，同时进行的下载数不超过上限，超出的排队等待。
+ * 下载期间只在等待数据时阻塞，不占用CPU。进行中的下载按文件名登记，同一文件不会同时下载两次。
+ * 文件数据经由发出请求的连接返回。
+ */
+class DownloadManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(DownloadManager.class);
+
+    /**
+     * 默认同时进行的下载数
+     */
+    private static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 4;
+
+    /**
+     * 持续没有收到文件数据的最长时间
+     */
+    private static final int TRANSFER_TIMEOUT = 30000;
+
+    private final String repository;
+
+    private final MerkleTree hasher;
+
+    private final ConcurrentHashMap<String, Download> downloads = new ConcurrentHashMap<>();
+
+    private final ThreadPoolExecutor executor;
+
+    private volatile ThreadFactory receivers = VirtualThreads.newFactory("swarm-", false);
+
+    DownloadManager(String repository, MerkleTree hasher) {
+        this.repository = repository;
+        this.hasher = hasher;
+
+        executor = new ThreadPoolExecutor(DEFAULT_MAX_CONCURRENT_DOWNLOADS, DEFAULT_MAX_CONCURRENT_DOWNLOADS,
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger seq = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "download-" + seq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * 设置同时进行的下载数，超出的下载排队等待，可在运行时调整
+     */
+    void setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+        if (maxConcurrentDownloads < 1) {
+            throw new IllegalArgumentException("同时下载数至少为1");
+        }
+
+        if (maxConcurrentDownloads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(maxConcurrentDownloads);
+            executor.setCorePoolSize(maxConcurrentDownloads);
+        } else {
+            executor.setCorePoolSize(maxConcurrentDownloads);
+            executor.setMaximumPoolSize(maxConcurrentDownloads);
+        }
+    }
+
+    /**
+     * 下载及其中各连接的接收是否在虚拟线程（JVM支持时）中进行，默认使用平台线程，对之后新建的线程生效
+     * 同时下载数的限制不变
+     */
+    void setVirtualThreads(boolean virtual) {
+        executor.setThreadFactory(VirtualThreads.newFactory("download-", virtual));
+        receivers = VirtualThreads.newFactory("swarm-", virtual);
+    }
+
+    /**
+     * 进行中（包括排队中）的下载数
+     */
+    int getActiveCount() {
+        return downloads.size();
+    }
+
+    /**
+     * 从owners处下载info
+     * 同一文件已在下载时返回该下载的结果，同名的不同文件正在下载时以异常结束
+     *
+     * @return 下载成功时以保存后的文件完成
+     */
+    CompletableFuture<File> download(FileInfo info, List<String> owners) {
+        final Download download = new Download(info, owners);
+        Download existing = downloads.putIfAbsent(info.getName(), download);
+        if (existing != null) {
+            if (existing.info.equals(info)) {
+                return existing.future;
+            }
+            CompletableFuture<File> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("同名文件正在下载：" + info.getName()));
+            return failed;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File file = null;
+                Exception failure = null;
+                try {
+                    file = download.run();
+                } catch (Exception e) {
+                    failure = e;
+                }
+
+                // 先注销再完成，使等待结果的一方可以立即重新下载同一文件
+                downloads.remove(download.info.getName(), download);
+                if (failure != null) {
+                    download.future.completeExceptionally(failure);
+                } else {
+                    download.future.complete(file);
+                }
+            }
+        });
+        return download.future;
+    }
+
+    /**
+     * 单个文件的下载，有分块摘要时从全部拥有者处分块下载，否则从随机选择的拥有者处逐段下载
+     * 分块摘要先以文件的校验码（Merkle树的根）校验，此后每块到达时单独校验，无需在下载完成后再校验整个文件
+     */
+    private class Download {
+
+        private final FileInfo info;
+
+        private final List<String> owners;
+
+        private final CompletableFuture<File> future = new CompletableFuture<>();
+
+        private Download(FileInfo info, List<String> owners) {
+            this.info = info;
+            this.owners = new ArrayList<>(owners);
+        }
+
+        private File run() throws Exception {
+            if (owners.isEmpty()) {
+                throw new IOException("无可用的拥有者：" + info.getName());
+            }
+            File target = new File(repository + info.getName());
+
+            if (!info.getPieceHashes().isEmpty()) {
+                if (!hasher.getRoot(info.getPieceHashes()).equals(info.getHash())) {
+                    throw new IOException("分块摘要与文件校验码不符：" + info.getName());
+                }
+                logger.info("从{}个拥有者处分块下载：{}，共{}块", owners.size(), info.getName(), info.getPieceHashes().size());
+
+                SwarmDownload swarm = new SwarmDownload(PartialDownload.open(info, repository, null), owners, repository, hasher,
+                        receivers);
+                if (!swarm.run()) {
+                    throw new IOException("文件下载失败：" + info.getName());
+                }
+                return target;
+            }
+
+            String owner = owners.get(ThreadLocalRandom.current().nextInt(owners.size()));
+            PeerConnection conn = new PeerConnection(owner, TRANSFER_TIMEOUT);
+            try {
+                conn.send(new FrameBuilder(Constant.OP_CONNECT).build());
+                if (conn.receive().getOpcode() != Constant.OP_ACCEPT) {
+                    throw new IOException("与对等方认证失败：" + owner);
+                }
+                logger.info("与对等方认证成功：{}", owner);
+
+                downloadRanges(PartialDownload.open(info, repository, hasher.getAlgorithm()), conn, target);
+            } finally {
+                conn.close();
+            }
+            return target;
+        }
+    }
+
+    /**
+     * 逐段请求缺失的数据，数据经由同一连接返回并直接写入未完成的下载
+     * 连接中断或超时时保留已下载的部分，再次下载同一文件时继续
+     */
+    private void downloadRanges(PartialDownload partial, PeerConnection conn, File target) throws Exception {
+        FileInfo info = partial.getInfo();
+        boolean done = false;
+        try {
+            while (!partial.isComplete()) {
+                long[] range = partial.getMissingRanges().get(0);
+                try {
+                    receiveRange(partial, conn, range[0], range[1] - range[0]);
+                } catch (IOException e) {
+                    throw new IOException("文件传输中断：" + info.getName() + "，已完成：" + partial.getCompleted()
+                            + "字节，重新下载该文件即可继续（" + e.getMessage() + "）", e);
+                }
+            }
+
+            // 没有分块摘要的文件（空文件或旧版本公布的文件）以整个文件的摘要为校验码
+            if (!partial.getDigest().equals(info.getHash())) {
+                partial.discard();
+                done = true;
+                throw new IOException("文件校验失败：" + info.getName());
+            }
+
+            partial.finish(target);
+            done = true;
+
+            logger.info("文件已保存为：{}", target);
+        } finally {
+            if (!done) {
+                partial.close();
+            }
+        }
+    }
+
+    /**
+     * 请求文件中从offset开始的length字节，并将返回的数据写入partial
+     */
+    private void receiveRange(PartialDownload partial, PeerConnection conn, long offset, long length) throws IOException {
+        String name = partial.getInfo().getName();
+        conn.send(new FrameBuilder(Constant.OP_REQUEST)
+                .putString(name)
+                .putLong(offset)
+                .putLong(length)
+                .build());
+
+        Frame header = conn.receive();
+        if (header.getOpcode() == Constant.OP_ERROR) {
+            throw new IOException(header.getString());
+        }
+        if (header.getOpcode() != Constant.OP_RANGE || !header.getString().equals(name) || header.getLong() != offset) {
+            throw new IOException("对等方的响应与请求不符");
+        }
+        long received = header.getLong();
+        if (received == 0) {
+            throw new IOException("对等方没有该段数据");
+        }
+
+        RangeSink sink = partial.openSink(offset);
+        try {
+            conn.receiveBulk(received, sink);
+        } finally {
+            sink.close();
+        }
+    }
+}
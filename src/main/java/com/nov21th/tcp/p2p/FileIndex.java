@@ -0,0 +1,344 @@
+package com.nov21th.tcp.p2p;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 中央服务器上的共享文件索引
+ * <p>
+ * 文件按内容校验码（各块摘要构成的Merkle树的根）分散到若干分片中，各分片独立加锁，内容相同的文件总在同一分片，
+ * 因此按校验码查找只需访问一个分片。另以拥有者为键维护反向索引，
+ * 拥有者退出时只需处理它共享的文件，而不必遍历整个索引。
+ * 全部文件还按文件名有序地保存在跳表中，供分页查询使用。
+ */
+class FileIndex {
+
+    private static final int SHARD_COUNT = 64;
+
+    /**
+     * 按文件名、校验码、大小排序
+     */
+    static final Comparator<FileInfo> NAME_ORDER = new Comparator<FileInfo>() {
+        @Override
+        public int compare(FileInfo a, FileInfo b) {
+            int c = a.getName().compareTo(b.getName());
+            if (c == 0) {
+                c = a.getHash().compareTo(b.getHash());
+            }
+            if (c == 0) {
+                c = Long.compare(a.getSize(), b.getSize());
+            }
+            return c;
+        }
+    };
+
+    private final Shard[] shards = new Shard[SHARD_COUNT];
+
+    /**
+     * 拥有者到其共享文件的反向索引，修改某拥有者的文件集合时以该集合加锁
+     */
+    private final ConcurrentHashMap<String, Set<FileInfo>> byOwner = new ConcurrentHashMap<>();
+
+    private final ConcurrentSkipListSet<FileInfo> byName = new ConcurrentSkipListSet<>(NAME_ORDER);
+
+    private final AtomicInteger fileCount = new AtomicInteger();
+
+    /**
+     * 拥有者的每次增减均记入其中，与对索引的修改在同一拥有者锁内进行，
+     * 因此同一拥有者与文件的变更在记录中的顺序与实际发生的顺序一致
+     */
+    private final ChangeLog changeLog;
+
+    FileIndex(ChangeLog changeLog) {
+        this.changeLog = changeLog;
+
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * 记录owner共享了info
+     */
+    void add(FileInfo info, String owner) {
+        while (true) {
+            Set<FileInfo> owned = byOwner.get(owner);
+            if (owned == null) {
+                owned = new HashSet<>();
+                Set<FileInfo> existing = byOwner.putIfAbsent(owner, owned);
+                if (existing != null) {
+                    owned = existing;
+                }
+            }
+
+            synchronized (owned) {
+                // 集合可能已在拥有者退出时被移出索引，此时重新取得
+                if (byOwner.get(owner) != owned) {
+                    continue;
+                }
+                if (owned.add(info)) {
+                    shardFor(info.getHash()).add(info, owner);
+                    changeLog.append(true, info, owner);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * 记录owner不再共享info，用于从日志中恢复索引
+     */
+    void remove(FileInfo info, String owner) {
+        Set<FileInfo> owned = byOwner.get(owner);
+        if (owned == null) {
+            return;
+        }
+
+        synchronized (owned) {
+            if (owned.remove(info)) {
+                shardFor(info.getHash()).remove(info, owner);
+                changeLog.append(false, info, owner);
+            }
+            if (owned.isEmpty()) {
+                byOwner.remove(owner, owned);
+            }
+        }
+    }
+
+    /**
+     * 移除owner共享的全部文件，没有其他拥有者的文件随之从索引中删除
+     *
+     * @return 被移除的文件数
+     */
+    int removeOwner(String owner) {
+        Set<FileInfo> owned = byOwner.remove(owner);
+        if (owned == null) {
+            return 0;
+        }
+
+        synchronized (owned) {
+            for (FileInfo info : owned) {
+                shardFor(info.getHash()).remove(info, owner);
+                changeLog.append(false, info, owner);
+            }
+            return owned.size();
+        }
+    }
+
+    /**
+     * 内容校验码为hash的全部文件
+     */
+    List<FileInfo> findByHash(String hash) {
+        return shardFor(hash).findByHash(hash);
+    }
+
+    /**
+     * owner共享的全部文件
+     */
+    List<FileInfo> findByOwner(String owner) {
+        Set<FileInfo> owned = byOwner.get(owner);
+        if (owned == null) {
+            return Collections.emptyList();
+        }
+        synchronized (owned) {
+            return new ArrayList<>(owned);
+        }
+    }
+
+    /**
+     * owner共享的文件数
+     */
+    int countByOwner(String owner) {
+        Set<FileInfo> owned = byOwner.get(owner);
+        if (owned == null) {
+            return 0;
+        }
+        synchronized (owned) {
+            return owned.size();
+        }
+    }
+
+    /**
+     * 共享了文件的全部拥有者
+     */
+    List<String> owners() {
+        return new ArrayList<>(byOwner.keySet());
+    }
+
+    /**
+     * 按文件名顺序返回满足query的一页文件
+     *
+     * @param limit   本页最多返回的文件数
+     * @param maxScan 本次最多检查的文件数，条件较苛刻时提前返回，以免单次查询耗时过长
+     */
+    Page query(ListQuery query, int limit, int maxScan) {
+        NavigableSet<FileInfo> candidates = byName;
+        if (!query.getHash().isEmpty()) {
+            candidates = new TreeSet<>(NAME_ORDER);
+            candidates.addAll(findByHash(query.getHash()));
+        }
+
+        String prefix = query.getPrefix();
+        FileInfo start = new FileInfo(prefix, "", Long.MIN_VALUE);
+        if (query.getCursor() != null && NAME_ORDER.compare(query.getCursor(), start) >= 0) {
+            start = query.getCursor();
+        }
+        NavigableSet<FileInfo> range = candidates.tailSet(start, start != query.getCursor());
+
+        Page page = new Page();
+        int scanned = 0;
+        for (FileInfo info : range) {
+            if (!info.getName().startsWith(prefix)) {
+                break;
+            }
+
+            if (query.matches(info)) {
+                List<String> owners = shardFor(info.getHash()).getOwners(info);
+                if (owners != null) {
+                    page.files.add(info);
+                    page.owners.add(owners);
+                }
+            }
+
+            if (page.files.size() >= limit || ++scanned >= maxScan) {
+                FileInfo next = range.higher(info);
+                if (next != null && next.getName().startsWith(prefix)) {
+                    page.cursor = info;
+                }
+                break;
+            }
+        }
+        return page;
+    }
+
+    /**
+     * 全部文件及其拥有者的副本，按文件名顺序排列，以便恢复时按顺序插入跳表
+     * 逐个文件读取拥有者，不保证整体的一致性
+     */
+    Map<FileInfo, List<String>> snapshot() {
+        Map<FileInfo, List<String>> snapshot = new LinkedHashMap<>(fileCount.get() * 4 / 3 + 1);
+        for (FileInfo info : byName) {
+            List<String> owners = shardFor(info.getHash()).getOwners(info);
+            if (owners != null) {
+                snapshot.put(info, owners);
+            }
+        }
+        return snapshot;
+    }
+
+    int size() {
+        return fileCount.get();
+    }
+
+    private Shard shardFor(String hash) {
+        return shards[(hash.hashCode() & 0x7FFFFFFF) % SHARD_COUNT];
+    }
+
+    /**
+     * 一页查询结果
+     */
+    static class Page {
+
+        final List<FileInfo> files = new ArrayList<>();
+
+        /**
+         * 与files一一对应的拥有者
+         */
+        final List<List<String>> owners = new ArrayList<>();
+
+        /**
+         * 还有更多结果时为下一页的游标，否则为null
+         */
+        FileInfo cursor;
+    }
+
+    private class Shard {
+
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private final Map<FileInfo, Set<String>> owners = new HashMap<>();
+
+        private final Map<String, List<FileInfo>> byHash = new HashMap<>();
+
+        void add(FileInfo info, String owner) {
+            lock.writeLock().lock();
+            try {
+                Set<String> set = owners.get(info);
+                if (set == null) {
+                    set = new HashSet<>();
+                    owners.put(info, set);
+                    fileCount.incrementAndGet();
+
+                    List<FileInfo> sameHash = byHash.get(info.getHash());
+                    if (sameHash == null) {
+                        sameHash = new ArrayList<>(1);
+                        byHash.put(info.getHash(), sameHash);
+                    }
+                    sameHash.add(info);
+                    byName.add(info);
+                }
+                set.add(owner);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(FileInfo info, String owner) {
+            lock.writeLock().lock();
+            try {
+                Set<String> set = owners.get(info);
+                if (set == null || !set.remove(owner) || !set.isEmpty()) {
+                    return;
+                }
+                owners.remove(info);
+                byName.remove(info);
+                fileCount.decrementAndGet();
+
+                List<FileInfo> sameHash = byHash.get(info.getHash());
+                sameHash.remove(info);
+                if (sameHash.isEmpty()) {
+                    byHash.remove(info.getHash());
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * info的拥有者，info已不在索引中时返回null
+         */
+        List<String> getOwners(FileInfo info) {
+            lock.readLock().lock();
+            try {
+                Set<String> set = owners.get(info);
+                return set == null ? null : new ArrayList<>(set);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        List<FileInfo> findByHash(String hash) {
+            lock.readLock().lock();
+            try {
+                List<FileInfo> sameHash = byHash.get(hash);
+                return sameHash == null ? Collections.<FileInfo>emptyList() : new ArrayList<>(sameHash);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.nov21th.tcp.p2p;
 
+import java.util.List;
+
 /**
  * Created by GuoYonghui on 2017/6/29.
  */
@@ -9,7 +11,12 @@ public class FileInfo {
 
     private String hash;
 
-    private int size;
+    private long size;
+
+    /**
+     * 按{@link com.nov21th.common.Constant#PIECE_SIZE}分块后各块的摘要，不参与相等性比较
+     */
+    private List<String> pieceHashes;
 
     public String getName() {
         return name;
@@ -27,18 +34,26 @@ public class FileInfo {
         this.hash = hash;
     }
 
-    public int getSize() {
+    public long getSize() {
         return size;
     }
 
-    public void setSize(int size) {
+    public void setSize(long size) {
         this.size = size;
     }
 
+    public List<String> getPieceHashes() {
+        return pieceHashes;
+    }
+
+    public void setPieceHashes(List<String> pieceHashes) {
+        this.pieceHashes = pieceHashes;
+    }
+
     public FileInfo() {
     }
 
-    public FileInfo(String name, String hash, int size) {
+    public FileInfo(String name, String hash, long size) {
         this.name = name;
         this.hash = hash;
         this.size = size;
@@ -59,7 +74,7 @@ public class FileInfo {
     @Override
     public int hashCode() {
         int result = name != null ? name.hashCode() : 0;
-        result = 31 * result + size;
+        result = 31 * result + (int) (size ^ (size >>> 32));
         result = 31 * result + (hash != null ? hash.hashCode() : 0);
         return result;
     }
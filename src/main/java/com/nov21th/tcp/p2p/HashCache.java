@@ -0,0 +1,186 @@
+package com.nov21th.tcp.p2p;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 已计算过的文件校验码，以路径、大小和修改时间为键保存在磁盘上，重启后无需重新计算
+ * <p>
+ * 文件的大小或修改时间变化后对应的记录即失效，计算校验码所用的摘要算法变化后全部记录失效。
+ */
+class HashCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(HashCache.class);
+
+    /**
+     * 文件格式版本，格式变化时递增，旧版本的文件将被忽略
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * 保存时先写入该后缀的临时文件，写完后再替换
+     */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File file;
+
+    private final String algorithm;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private volatile boolean dirty;
+
+    private HashCache(File file, String algorithm) {
+        this.file = file;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * name是否为名为cacheName的缓存文件或保存时的临时文件，这些文件不应被共享
+     */
+    static boolean isCacheFile(String name, String cacheName) {
+        return name.equals(cacheName) || name.equals(cacheName + TEMP_SUFFIX);
+    }
+
+    /**
+     * 读取file中保存的记录，文件不存在、已损坏或以其他摘要算法计算时从空记录开始
+     */
+    static HashCache load(File file, String algorithm) {
+        HashCache cache = new HashCache(file, algorithm);
+        if (!file.exists()) {
+            return cache;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != VERSION || !in.readUTF().equals(algorithm)) {
+                    return cache;
+                }
+                int count = in.readInt();
+                if (count < 0) {
+                    throw new IOException("无效的记录数：" + count);
+                }
+                for (int i = 0; i < count; i++) {
+                    String path = in.readUTF();
+                    long size = in.readLong();
+                    long modified = in.readLong();
+                    String hash = in.readUTF();
+                    int pieceCount = in.readInt();
+                    if (pieceCount < 0) {
+                        throw new IOException("无效的块数：" + pieceCount);
+                    }
+                    // 块数读自文件，文件损坏时可能极大，不据此预先分配
+                    List<String> pieceHashes = new ArrayList<>();
+                    for (int j = 0; j < pieceCount; j++) {
+                        pieceHashes.add(in.readUTF());
+                    }
+                    cache.entries.put(path, new Entry(size, modified, hash, pieceHashes));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.error("校验码缓存已损坏，将重新计算：{}", file);
+            cache.entries.clear();
+        }
+        return cache;
+    }
+
+    /**
+     * 取出file的校验码，记录不存在或已过期时返回null
+     */
+    FileInfo get(File file) {
+        Entry entry = entries.get(file.getPath());
+        if (entry == null || entry.size != file.length() || entry.modified != file.lastModified()) {
+            return null;
+        }
+
+        FileInfo info = new FileInfo(file.getName(), entry.hash, entry.size);
+        info.setPieceHashes(entry.pieceHashes);
+        return info;
+    }
+
+    /**
+     * 记录file的校验码，size与modified应为计算校验码之前读取的值，以免记下计算期间被修改的文件
+     */
+    void put(File file, long size, long modified, FileInfo info) {
+        entries.put(file.getPath(), new Entry(size, modified, info.getHash(), info.getPieceHashes()));
+        dirty = true;
+    }
+
+    /**
+     * 有新记录时写回磁盘，同时丢弃已不存在的文件的记录
+     */
+    synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+
+        Iterator<String> iterator = entries.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (!new File(iterator.next()).exists()) {
+                iterator.remove();
+            }
+        }
+
+        List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(entries.entrySet());
+
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(algorithm);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> e : snapshot) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                out.writeUTF(entry.hash);
+                out.writeInt(entry.pieceHashes.size());
+                for (String pieceHash : entry.pieceHashes) {
+                    out.writeUTF(pieceHash);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static class Entry {
+
+        private final long size;
+
+        private final long modified;
+
+        private final String hash;
+
+        private final List<String> pieceHashes;
+
+        private Entry(long size, long modified, String hash, List<String> pieceHashes) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.pieceHashes = pieceHashes;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.nov21th.tcp.p2p;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 对等方的租约，以时间轮管理到期时间
+ * <p>
+ * 续约只更新租约的到期时间，不移动其在时间轮中的位置；租约所在的槽到期时再检查，
+ * 已续约的租约按新的到期时间放入后面的槽。因此续约不加锁，
+ * 每次推进时间轮只处理到期的槽中的租约，而不必检查全部对等方。
+ * <p>
+ * 到期与续约以CAS修改到期时间：租约到期时先将到期时间置为{@link #EXPIRED}，
+ * 续约发现租约已到期时在锁内创建新的租约，因此与到期同时发生的续约不会丢失。
+ */
+class LeaseWheel {
+
+    private static final int SLOT_COUNT = 64;
+
+    /**
+     * 已到期的租约的到期时间，此后不能再续约
+     */
+    private static final long EXPIRED = Long.MIN_VALUE;
+
+    /**
+     * 时间轮每个槽对应的时长
+     */
+    private final long tick;
+
+    private final long timeout;
+
+    private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<>();
+
+    private final List<List<Lease>> slots = new ArrayList<>(SLOT_COUNT);
+
+    /**
+     * 下一个待处理的槽对应的时刻（以tick为单位）
+     */
+    private long current;
+
+    /**
+     * @param timeout 租约时长，不续约的对等方在此后的一个tick内到期
+     * @param tick    检查到期的时间粒度
+     */
+    LeaseWheel(long timeout, long tick, long now) {
+        this.timeout = timeout;
+        this.tick = tick;
+        this.current = now / tick;
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            slots.add(new ArrayList<Lease>());
+        }
+    }
+
+    long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * 续约，owner没有租约时为其创建
+     */
+    void renew(String owner, long now) {
+        Lease lease = leases.get(owner);
+        if (lease != null && lease.extend(now + timeout)) {
+            return;
+        }
+
+        // 租约可能恰好已到期，此时重新创建
+        synchronized (this) {
+            lease = leases.get(owner);
+            if (lease == null || !lease.extend(now + timeout)) {
+                lease = new Lease(owner, now + timeout);
+                leases.put(owner, lease);
+                schedule(lease);
+            }
+        }
+    }
+
+    /**
+     * 取消owner的租约，其在时间轮中的位置留待到期时丢弃
+     */
+    void cancel(String owner) {
+        leases.remove(owner);
+    }
+
+    boolean isLeased(String owner) {
+        return leases.containsKey(owner);
+    }
+
+    int size() {
+        return leases.size();
+    }
+
+    /**
+     * 推进时间轮至now，移除并返回其间到期的租约的拥有者
+     */
+    synchronized List<String> expire(long now) {
+        List<String> expired = new ArrayList<>();
+        long target = now / tick;
+        for (; current <= target; current++) {
+            int index = (int) (current % SLOT_COUNT);
+            List<Lease> due = slots.get(index);
+            if (due.isEmpty()) {
+                continue;
+            }
+            slots.set(index, new ArrayList<Lease>());
+
+            for (Lease lease : due) {
+                if (leases.get(lease.owner) != lease) {
+                    continue;
+                }
+                if (lease.expire(now)) {
+                    if (leases.remove(lease.owner, lease)) {
+                        expired.add(lease.owner);
+                    }
+                } else {
+                    schedule(lease);
+                }
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * 按到期时间放入对应的槽，至少放在下一个待处理的槽之后，以免在本轮推进中被跳过
+     * 到期时间超出时间轮一周时会提前处理，届时重新放入即可
+     */
+    private void schedule(Lease lease) {
+        long at = Math.max((lease.deadline.get() + tick - 1) / tick, current + 1);
+        slots.get((int) (at % SLOT_COUNT)).add(lease);
+    }
+
+    private static class Lease {
+
+        private final String owner;
+
+        private final AtomicLong deadline;
+
+        private Lease(String owner, long deadline) {
+            this.owner = owner;
+            this.deadline = new AtomicLong(deadline);
+        }
+
+        /**
+         * 将到期时间改为deadline
+         *
+         * @return 租约已到期时返回false
+         */
+        boolean extend(long deadline) {
+            while (true) {
+                long current = this.deadline.get();
+                if (current == EXPIRED) {
+                    return false;
+                }
+                if (this.deadline.compareAndSet(current, deadline)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 到期时间不晚于now时将租约标记为已到期
+         *
+         * @return 租约已到期时返回true
+         */
+        boolean expire(long now) {
+            while (true) {
+                long current = deadline.get();
+                if (current == EXPIRED) {
+                    return true;
+                }
+                if (current > now) {
+                    return false;
+                }
+                if (deadline.compareAndSet(current, EXPIRED)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.nov21th.tcp.p2p;
+
+import com.nov21th.tcp.codec.Frame;
+import com.nov21th.tcp.codec.FrameBuilder;
+
+/**
+ * 文件列表查询条件，各条件同时满足的文件按文件名排序后分页返回
+ * <p>
+ * 编码为：文件名前缀、文件名包含的字符串、内容校验码（长度为0表示不限）、
+ * 最小与最大大小（long）、每页数量（int）、是否有游标（int，0或1），
+ * 有游标时其后为上一页返回的游标文件的文件名、校验码与大小（long）。
+ */
+class ListQuery {
+
+    private String prefix = "";
+
+    private String contains = "";
+
+    private String hash = "";
+
+    private long minSize;
+
+    private long maxSize = Long.MAX_VALUE;
+
+    private int limit;
+
+    /**
+     * 从该文件之后开始返回，为null时从头开始
+     */
+    private FileInfo cursor;
+
+    String getPrefix() {
+        return prefix;
+    }
+
+    ListQuery setPrefix(String prefix) {
+        this.prefix = prefix;
+        return this;
+    }
+
+    String getContains() {
+        return contains;
+    }
+
+    ListQuery setContains(String contains) {
+        this.contains = contains;
+        return this;
+    }
+
+    String getHash() {
+        return hash;
+    }
+
+    ListQuery setHash(String hash) {
+        this.hash = hash;
+        return this;
+    }
+
+    long getMinSize() {
+        return minSize;
+    }
+
+    long getMaxSize() {
+        return maxSize;
+    }
+
+    ListQuery setSizeRange(long minSize, long maxSize) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param limit 每页数量，不大于0时使用服务器的默认值
+     */
+    ListQuery setLimit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    FileInfo getCursor() {
+        return cursor;
+    }
+
+    ListQuery setCursor(FileInfo cursor) {
+        this.cursor = cursor;
+        return this;
+    }
+
+    /**
+     * info是否满足除游标外的全部条件
+     */
+    boolean matches(FileInfo info) {
+        return info.getName().startsWith(prefix)
+                && (contains.isEmpty() || info.getName().contains(contains))
+                && (hash.isEmpty() || hash.equals(info.getHash()))
+                && info.getSize() >= minSize && info.getSize() <= maxSize;
+    }
+
+    void writeTo(FrameBuilder request) {
+        request.putString(prefix);
+        request.putString(contains);
+        request.putHash(hash);
+        request.putLong(minSize);
+        request.putLong(maxSize);
+        request.putInt(limit);
+        request.putInt(cursor == null ? 0 : 1);
+        if (cursor != null) {
+            request.putString(cursor.getName());
+            request.putHash(cursor.getHash());
+            request.putLong(cursor.getSize());
+        }
+    }
+
+    static ListQuery readFrom(Frame request) {
+        ListQuery query = new ListQuery();
+        query.prefix = request.getString();
+        query.contains = request.getString();
+        query.hash = request.getHash();
+        query.minSize = request.getLong();
+        query.maxSize = request.getLong();
+        query.limit = request.getInt();
+        if (request.getInt() != 0) {
+            query.cursor = new FileInfo(request.getString(), request.getHash(), request.getLong());
+        }
+        return query;
+    }
+}
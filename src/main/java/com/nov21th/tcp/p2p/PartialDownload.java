@@ -0,0 +1,356 @@
+package com.nov21th.tcp.p2p;
+
+import com.nov21th.tcp.file.RangeSink;
+import com.nov21th.util.MD5Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 未完成的下载，数据写入"文件名.part"，已完成的区间记录在"文件名.part.ranges"中
+ * <p>
+ * 区间记录文件首行为文件的校验码与大小，其后每行为一个已完成区间的起止位置（左闭右开）。
+ * 再次下载同一文件时从记录中恢复，只需请求缺失的区间。
+ * <p>
+ * 没有分块摘要的文件需要校验整个文件的摘要，该摘要随数据到达增量计算：写入的数据恰好接在已计算的前缀之后时直接计算，
+ * 否则待前缀之后的区间完成时从文件中读回补算，下载完成时无需再完整读一遍文件。
+ */
+class PartialDownload {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartialDownload.class);
+
+    /**
+     * 每写入该数量的字节后保存一次区间记录
+     */
+    private static final long PERSIST_INTERVAL = 8 * 1024 * 1024;
+
+    private final FileInfo info;
+
+    private final File dataFile;
+
+    private final File rangeFile;
+
+    private final FileChannel channel;
+
+    /**
+     * 已完成的区间，键为起始位置，值为结束位置
+     */
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+    private long unpersisted;
+
+    /**
+     * 文件前缀[0, digested)的摘要，由自身加锁保护，不计算整个文件的摘要时为null
+     */
+    private final MessageDigest digest;
+
+    private long digested;
+
+    /**
+     * name是否为未完成下载的数据或区间记录文件，这些文件不应被共享
+     */
+    static boolean isPartialFile(String name) {
+        return name.endsWith(".part") || name.endsWith(".part.ranges") || name.endsWith(".part.ranges.tmp");
+    }
+
+    private PartialDownload(FileInfo info, String repository, String digestAlgorithm) throws IOException {
+        this.info = info;
+        this.dataFile = new File(repository + info.getName() + ".part");
+        this.rangeFile = new File(repository + info.getName() + ".part.ranges");
+
+        if (!load()) {
+            ranges.clear();
+            if (dataFile.exists() && !dataFile.delete()) {
+                throw new IOException("无法删除过期的下载文件：" + dataFile);
+            }
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+        raf.setLength(info.getSize());
+        channel = raf.getChannel();
+
+        if (digestAlgorithm == null) {
+            digest = null;
+            return;
+        }
+        try {
+            digest = MessageDigest.getInstance(digestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 打开文件对应的未完成下载，记录与文件不符时从头开始
+     *
+     * @param digestAlgorithm 以该算法计算整个文件的摘要，为null时不计算（如已逐块校验）
+     */
+    static PartialDownload open(FileInfo info, String repository, String digestAlgorithm) throws IOException {
+        PartialDownload partial = new PartialDownload(info, repository, digestAlgorithm);
+        if (partial.getCompleted() > 0) {
+            logger.info("恢复未完成的下载：{}，已完成：{}字节", info.getName(), partial.getCompleted());
+        }
+        return partial;
+    }
+
+    FileInfo getInfo() {
+        return info;
+    }
+
+    synchronized long getCompleted() {
+        long completed = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            completed += range.getValue() - range.getKey();
+        }
+        return completed;
+    }
+
+    synchronized boolean isComplete() {
+        return getCompleted() == info.getSize();
+    }
+
+    /**
+     * [start, end)是否已全部完成
+     */
+    synchronized boolean isCovered(long start, long end) {
+        if (start >= end) {
+            return true;
+        }
+        Map.Entry<Long, Long> range = ranges.floorEntry(start);
+        return range != null && range.getValue() >= end;
+    }
+
+    /**
+     * 缺失的区间，每项为{起始位置, 结束位置}
+     */
+    synchronized List<long[]> getMissingRanges() {
+        List<long[]> missing = new ArrayList<>();
+        long position = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            if (range.getKey() > position) {
+                missing.add(new long[]{position, range.getKey()});
+            }
+            position = range.getValue();
+        }
+        if (position < info.getSize()) {
+            missing.add(new long[]{position, info.getSize()});
+        }
+        return missing;
+    }
+
+    /**
+     * 将data写入position处并记录为已完成
+     */
+    void write(long position, ByteBuffer data) throws IOException {
+        ByteBuffer written = data.duplicate();
+        long start = position;
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+        record(start, position);
+        updateDigest(start, written);
+    }
+
+    /**
+     * 整个文件的摘要，尚未计算的部分从文件中读回补算，应在下载完成后调用
+     */
+    String getDigest() throws IOException {
+        if (digest == null) {
+            throw new IllegalStateException("未计算整个文件的摘要：" + info.getName());
+        }
+        synchronized (digest) {
+            updateDigest(-1, null);
+            if (digested != info.getSize()) {
+                throw new IOException("下载尚未完成：" + info.getName());
+            }
+            return MD5Util.toHexString(digest.digest());
+        }
+    }
+
+    /**
+     * data为刚写入start处的数据，恰好接在已计算的前缀之后时直接计算，
+     * 此后前缀之后若有已完成的区间，则从文件中读回补算
+     */
+    private void updateDigest(long start, ByteBuffer data) throws IOException {
+        if (digest == null) {
+            return;
+        }
+        synchronized (digest) {
+            if (start == digested) {
+                digested += data.remaining();
+                digest.update(data);
+            }
+
+            long end;
+            synchronized (this) {
+                Map.Entry<Long, Long> range = ranges.floorEntry(digested);
+                end = range == null ? digested : Math.max(digested, range.getValue());
+            }
+            if (digested == end) {
+                return;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (digested < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - digested));
+                int n = channel.read(buffer, digested);
+                if (n < 0) {
+                    throw new IOException("读取下载数据失败：" + dataFile);
+                }
+                buffer.flip();
+                digest.update(buffer);
+                digested += n;
+            }
+        }
+    }
+
+    /**
+     * 打开一个从offset开始顺序写入的目标，已写入的部分在关闭前也会被记录
+     */
+    RangeSink openSink(final long offset) {
+        return new RangeSink() {
+            private long position = offset;
+
+            @Override
+            public void write(ByteBuffer chunk) throws IOException {
+                long end = position + chunk.remaining();
+                if (end > info.getSize()) {
+                    throw new IOException("数据超出文件范围：" + info.getName());
+                }
+                PartialDownload.this.write(position, chunk);
+                position = end;
+            }
+
+            @Override
+            public void close() throws IOException {
+                synchronized (PartialDownload.this) {
+                    persist();
+                }
+            }
+        };
+    }
+
+    /**
+     * 下载完成，将数据移动至target并删除区间记录
+     */
+    void finish(File target) throws IOException {
+        channel.close();
+        Files.move(dataFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        if (rangeFile.exists() && !rangeFile.delete()) {
+            logger.error("删除区间记录失败：{}", rangeFile);
+        }
+    }
+
+    /**
+     * 丢弃已下载的全部数据
+     */
+    void discard() throws IOException {
+        channel.close();
+        if (!dataFile.delete() || (rangeFile.exists() && !rangeFile.delete())) {
+            logger.error("删除未完成的下载失败：{}", dataFile);
+        }
+    }
+
+    /**
+     * 暂停下载，保存区间记录以便之后恢复
+     */
+    void close() throws IOException {
+        synchronized (this) {
+            persist();
+        }
+        channel.close();
+    }
+
+    private synchronized void record(long start, long end) throws IOException {
+        if (start >= end) {
+            return;
+        }
+
+        Map.Entry<Long, Long> previous = ranges.floorEntry(start);
+        if (previous != null && previous.getValue() >= start) {
+            start = previous.getKey();
+            end = Math.max(end, previous.getValue());
+        }
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+            next = ranges.higherEntry(start);
+        }
+        ranges.put(start, end);
+
+        unpersisted += end - start;
+        if (unpersisted >= PERSIST_INTERVAL) {
+            persist();
+        }
+    }
+
+    /**
+     * 先将数据刷入磁盘再保存区间记录，保证记录中的区间确实已落盘
+     */
+    private void persist() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        channel.force(false);
+
+        File temp = new File(rangeFile.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            writer.write(info.getHash() + "\t" + info.getSize() + "\n");
+            for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+                writer.write(range.getKey() + "\t" + range.getValue() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        Files.move(temp.toPath(), rangeFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        unpersisted = 0;
+    }
+
+    private boolean load() throws IOException {
+        if (!rangeFile.exists() || !dataFile.exists()) {
+            return false;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(rangeFile), "UTF-8"));
+        try {
+            String line = reader.readLine();
+            if (line == null || !line.equals(info.getHash() + "\t" + info.getSize())) {
+                return false;
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] range = line.split("\t");
+                if (range.length == 2) {
+                    ranges.put(Long.parseLong(range[0]), Long.parseLong(range[1]));
+                }
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        } finally {
+            reader.close();
+        }
+        return true;
+    }
+}
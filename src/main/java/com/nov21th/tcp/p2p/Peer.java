@@ -1,58 +1,227 @@
 package com.nov21th.tcp.p2p;
 
 import com.nov21th.common.Constant;
-import com.nov21th.tcp.file.FileTransferCallback;
+import com.nov21th.metrics.MetricsEndpoint;
+import com.nov21th.tcp.ServerMode;
+import com.nov21th.tcp.codec.Frame;
+import com.nov21th.tcp.codec.FrameBuilder;
+import com.nov21th.tcp.codec.FrameCodec;
 import com.nov21th.tcp.file.FileTransferServer;
-import com.nov21th.util.MD5Util;
+import com.nov21th.tcp.file.TransferMode;
+import com.nov21th.util.MerkleTree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 /**
  * Created by GuoYonghui on 2017/6/29.
  */
-public class Peer implements FileTransferCallback {
+public class Peer {
 
     private static final Logger logger = LoggerFactory.getLogger(Peer.class);
 
-    private SocketAddress centralAddr;
+    /**
+     * 等待中央服务器响应的最长时间
+     */
+    private static final long REQUEST_TIMEOUT = 10000;
+
+    /**
+     * 批量共享时单个请求的大致上限，超出后另起一个请求
+     */
+    private static final int MAX_BATCH_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * 仓库中保存校验码缓存的文件，以'.'开头因而不会被共享
+     */
+    private static final String HASH_CACHE_FILE = ".hashes";
+
+    /**
+     * 列出共享文件时每页的数量
+     */
+    private static final int LIST_PAGE_SIZE = 50;
+
+    /**
+     * 获取完整文件列表时每次请求的数量
+     */
+    private static final int SNAPSHOT_PAGE_SIZE = 1000;
+
+    /**
+     * 同步响应中一项变更至少占用的字节数：变更类型、拥有者、文件名、校验码与大小
+     */
+    private static final int MIN_CHANGE_LENGTH = 4 + Frame.MIN_STRING_LENGTH * 2 + Frame.MIN_HASH_LENGTH + 8;
+
+    /**
+     * 列表响应中一个文件至少占用的字节数：文件名、校验码、大小、拥有者数与块数
+     */
+    private static final int MIN_LISTED_FILE_LENGTH = Frame.MIN_STRING_LENGTH + Frame.MIN_HASH_LENGTH + 8 + 4 + 4;
+
+    private CentralSession central;
+
+    private HashCache hashCache;
+
+    /**
+     * 计算共享文件的校验码，并校验下载的文件块
+     */
+    private final MerkleTree hasher;
+
+    private final Catalog catalog = new Catalog();
+
+    /**
+     * 已向中央服务器公布的文件，租约到期或中央服务器丢失记录后据此重新公布
+     */
+    private final Map<String, FileInfo> shared = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService heartbeat;
 
     private String repository;
 
-    private FileInfo currentTask;
+    private final DownloadManager downloads;
 
-    private volatile boolean currentTaskDone;
+    /**
+     * 本对等方接受文件请求的端口，认证时告知中央服务器
+     */
+    private final int port;
 
     public Peer(String centralIP, int centralPort, String repository) {
+        this(centralIP, centralPort, repository, Constant.DEFAULT_PEER_PORT);
+    }
+
+    public Peer(String centralIP, int centralPort, String repository, int port) {
+        this(centralIP, centralPort, repository, port, Constant.DEFAULT_HASH_ALGORITHM);
+    }
+
+    /**
+     * @param hashAlgorithm 计算文件校验码的摘要算法，须与网络中的其他对等方一致
+     */
+    public Peer(String centralIP, int centralPort, String repository, int port, String hashAlgorithm) {
+        this.port = port;
+        this.hasher = new MerkleTree(hashAlgorithm, Constant.PIECE_SIZE);
         if (!repository.endsWith("/")) {
             repository += "/";
         }
         this.repository = repository;
 
-        centralAddr = new InetSocketAddress(centralIP, centralPort);
+        central = new CentralSession(new InetSocketAddress(centralIP, centralPort));
+        hashCache = HashCache.load(new File(repository + HASH_CACHE_FILE), hashAlgorithm);
+        downloads = new DownloadManager(repository, hasher);
+    }
+
+    /**
+     * 设置同时进行的下载数，超出的下载排队等待
+     */
+    public void setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+        downloads.setMaxConcurrentDownloads(maxConcurrentDownloads);
+    }
+
+    /**
+     * 设置下载是否在虚拟线程（JVM支持时）中进行，需在开始下载前设置
+     */
+    public void setVirtualThreads(boolean virtual) {
+        downloads.setVirtualThreads(virtual);
     }
 
     private void doConnect() throws Exception {
         logger.info("与中央服务器进行身份认证");
 
-        String response = requestToCentral(Constant.CMD_CONNECT, centralAddr, true);
-        if (Constant.CMD_ACCEPT.equals(response)) {
+        Frame response = requestToCentral(newConnectRequest());
+        if (response != null && response.getOpcode() == Constant.OP_ACCEPT) {
             logger.info("身份认证成功");
+
+            startHeartbeat(response.getInt());
         }
     }
 
+    private FrameBuilder newConnectRequest() {
+        return CentralSession.newRequest(Constant.OP_CONNECT).putInt(port);
+    }
+
+    /**
+     * 每隔租约时长的三分之一向中央服务器发送一次心跳
+     */
+    private synchronized void startHeartbeat(long leaseTimeout) {
+        if (heartbeat != null) {
+            return;
+        }
+
+        heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "central-heartbeat");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long interval = leaseTimeout / 3;
+        heartbeat.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    doHeartbeat();
+                } catch (Exception e) {
+                    logger.error("向中央服务器发送心跳失败：{}", e.getMessage());
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 发送心跳，租约已到期或中央服务器记录的文件少于已公布的文件时重新公布
+     */
+    private void doHeartbeat() throws Exception {
+        Frame response = requestToCentral(CentralSession.newRequest(Constant.OP_HEARTBEAT));
+        if (response.getOpcode() == Constant.OP_ERROR) {
+            logger.info("租约已到期，重新进行身份认证");
+
+            response = requestToCentral(newConnectRequest());
+            if (response.getOpcode() != Constant.OP_ACCEPT) {
+                logger.error("重新认证失败");
+                return;
+            }
+            reannounce();
+            return;
+        }
+
+        checkResponse(response);
+        response.getInt();
+        if (response.getInt() < shared.size()) {
+            reannounce();
+        }
+    }
+
+    private void reannounce() throws Exception {
+        Announcement announcement = new Announcement();
+        for (FileInfo info : shared.values()) {
+            announcement.add(info);
+        }
+        logger.info("已重新公布{}个文件", announcement.finish());
+    }
+
     private void doQuit() throws Exception {
-        requestToCentral(Constant.CMD_QUIT, centralAddr, false);
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+        }
+        requestToCentral(CentralSession.newRequest(Constant.OP_QUIT));
+        central.close();
 
         logger.info("已与中央服务器断开连接");
         System.exit(0);
@@ -60,40 +229,40 @@ public class Peer implements FileTransferCallback {
 
     private void doAdd() throws Exception {
         File dir = new File(repository);
-        File[] files = dir.listFiles();
+        File[] listed = dir.listFiles();
 
-        if (files != null) {
-            for (int i = 0; i < files.length; i++) {
-                File file = files[i];
-                logger.info(i + "\t" + file.getName());
+        if (listed != null) {
+            List<File> files = new ArrayList<>();
+            for (File file : listed) {
+                if (isShareable(file)) {
+                    files.add(file);
+                }
+            }
+            for (int i = 0; i < files.size(); i++) {
+                logger.info(i + "\t" + files.get(i).getName());
             }
 
             Scanner input = new Scanner(System.in);
 
             logger.info("请输入要共享的文件序号");
             int select = input.nextInt();
-            if (select < 0 || select >= files.length) {
+            if (select < 0 || select >= files.size()) {
                 logger.error("无效的文件序号");
                 return;
             }
 
-            File file = files[select];
-            String hash = MD5Util.getMD5(file);
+            FileInfo info = hash(files.get(select));
+            FrameBuilder request = CentralSession.newRequest(Constant.OP_ADD);
+            putFileInfo(request, info);
+            saveHashCache();
 
-            StringBuilder sb = new StringBuilder();
-            sb.append("add\n");
-            sb.append(file.getName());
-            sb.append("\t");
-            sb.append(hash);
-            sb.append("\t");
-            sb.append(file.length());
-
-            String response = requestToCentral(sb.toString(), centralAddr, true);
+            Frame response = requestToCentral(request);
             if (response != null) {
-                if (response.startsWith(Constant.CMD_ERROR)) {
-                    logger.error("请求失败，原因：{}", response.split("\n")[1]);
+                if (response.getOpcode() == Constant.OP_ERROR) {
+                    logger.error("请求失败，原因：{}", response.getString());
                     return;
-                } else if (response.startsWith(Constant.CMD_OK)) {
+                } else if (response.getOpcode() == Constant.OP_OK) {
+                    shared.put(info.getName(), info);
                     logger.info("请求添加共享文件成功");
                     return;
                 }
@@ -103,130 +272,392 @@ public class Peer implements FileTransferCallback {
         }
     }
 
-    private void doList() throws Exception {
-        logger.info("向中央服务器请求可下载文件列表");
+    /**
+     * 共享仓库中的全部文件：在各核上并行计算校验码，按完成顺序攒成批量请求连续发出
+     */
+    private void doAddAll() throws Exception {
+        File[] files = new File(repository).listFiles();
+        if (files == null) {
+            logger.error("无法读取仓库目录：{}", repository);
+            return;
+        }
 
-        String response = requestToCentral(Constant.CMD_LIST, centralAddr, true);
-        if (response != null) {
-            if (response.startsWith(Constant.CMD_OK)) {
-                response = response.substring(Constant.CMD_OK.length() + 1);
+        long start = System.currentTimeMillis();
 
-                String[] files = response.split("\n");
-                for (int i = 0; i < files.length; i++) {
-                    logger.info("{}\t{}", i, files[i]);
+        ExecutorService hashExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            CompletionService<FileInfo> hashes = new ExecutorCompletionService<>(hashExecutor);
+            int submitted = 0;
+            for (final File file : files) {
+                if (!isShareable(file)) {
+                    continue;
                 }
-                logger.info("请选择要下载的文件序号（输入-1不进行下载）:");
+                hashes.submit(new Callable<FileInfo>() {
+                    @Override
+                    public FileInfo call() throws Exception {
+                        return hash(file);
+                    }
+                });
+                submitted++;
+            }
 
-                Scanner input = new Scanner(System.in);
-                int seq = input.nextInt();
+            Announcement announcement = new Announcement();
+            for (int i = 0; i < submitted; i++) {
+                try {
+                    announcement.add(hashes.take().get());
+                } catch (ExecutionException e) {
+                    logger.error("计算校验码失败", e.getCause());
+                }
+            }
 
-                if (seq < 0 || seq > files.length - 1) {
-                    return;
-                } else {
-                    String[] infos = files[seq].split("\t");
-                    currentTask = new FileInfo(infos[0], infos[1], Integer.parseInt(infos[2]));
-                    currentTaskDone = false;
-
-                    String ownerIP = infos[3];
-                    if (ownerIP.contains("/")) {
-                        String[] candidates = ownerIP.split("/");
-                        ownerIP = candidates[new Random().nextInt(candidates.length)];
-                    }
+            logger.info("已共享{}个文件，耗时{}毫秒", announcement.finish(), System.currentTimeMillis() - start);
+        } finally {
+            hashExecutor.shutdownNow();
+            saveHashCache();
+        }
+    }
 
-                    SocketAddress anotherPeer = new InetSocketAddress(ownerIP, 12345);
+    /**
+     * 将文件攒成批量共享请求连续发出，不等待前一批的响应
+     */
+    private class Announcement {
 
-                    String shake = requestToCentral(Constant.CMD_CONNECT + "\n", anotherPeer, true);
-                    if (shake != null && shake.startsWith(Constant.CMD_ACCEPT)) {
-                        logger.info("与对等方认证成功");
+        private final List<CompletableFuture<Frame>> responses = new ArrayList<>();
 
-                        StringBuilder sb = new StringBuilder();
-                        sb.append(Constant.CMD_REQUEST);
-                        sb.append("\n");
-                        sb.append(currentTask.getName());
+        private final List<FileInfo> files = new ArrayList<>();
 
-                        requestToCentral(sb.toString(), anotherPeer, false);
+        private FrameBuilder batch;
 
-                        while (!currentTaskDone) {
-                        }
-                    } else {
-                        logger.error("与对等方认证失败");
-                    }
+        private int batchCount;
 
-                    return;
+        void add(FileInfo info) throws IOException {
+            if (batch == null) {
+                batch = CentralSession.newRequest(Constant.OP_ADD_ALL);
+                batch.putInt(0);
+                batchCount = 0;
+            }
+            putFileInfo(batch, info);
+            batchCount++;
+            files.add(info);
+
+            if (batch.size() >= MAX_BATCH_BYTES) {
+                flush();
+            }
+        }
+
+        /**
+         * 发出剩余的文件并等待全部响应
+         *
+         * @return 中央服务器确认共享的文件数
+         */
+        int finish() throws Exception {
+            if (batch != null) {
+                flush();
+            }
+
+            int count = 0;
+            for (CompletableFuture<Frame> future : responses) {
+                Frame response = future.get(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (response.getOpcode() == Constant.OP_OK) {
+                    count += response.getInt();
+                } else if (response.getOpcode() == Constant.OP_ERROR) {
+                    logger.error("请求失败，原因：{}", response.getString());
                 }
-            } else if (response.startsWith(Constant.CMD_ERROR)) {
-                logger.error("请求失败，原因：{}", response.split("\n")[1]);
-                return;
             }
+            for (FileInfo info : files) {
+                shared.put(info.getName(), info);
+            }
+            return count;
         }
 
-        logger.info("未知的响应头");
+        private void flush() throws IOException {
+            responses.add(central.request(batch.putInt(FrameCodec.HEADER_LENGTH + 4, batchCount)));
+            batch = null;
+        }
     }
 
-    private String requestToCentral(String msg, SocketAddress addr, boolean needResponse) throws Exception {
-        SocketChannel sc = SocketChannel.open();
-        sc.connect(addr);
-        sc.configureBlocking(true);
+    /**
+     * 跳过目录、隐藏文件、未完成的下载以及校验码缓存
+     */
+    private boolean isShareable(File file) {
+        String name = file.getName();
+        return file.isFile() && !file.isHidden()
+                && !PartialDownload.isPartialFile(name)
+                && !HashCache.isCacheFile(name, HASH_CACHE_FILE);
+    }
 
-        ByteBuffer buffer = ByteBuffer.allocate(1024);
-        buffer.put(msg.getBytes("UTF-8"));
-        buffer.flip();
-        sc.write(buffer);
-        buffer.clear();
+    /**
+     * 取得文件的校验码，文件自上次计算后未被修改时直接使用缓存的结果
+     */
+    private FileInfo hash(File file) throws Exception {
+        FileInfo info = hashCache.get(file);
+        if (info != null) {
+            return info;
+        }
 
-        sc.shutdownOutput();
+        long size = file.length();
+        long modified = file.lastModified();
 
-        if (needResponse) {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            while ((sc.read(buffer)) != -1) {
-                buffer.flip();
-                while (buffer.hasRemaining()) {
-                    baos.write(buffer.get());
-                }
-                buffer.clear();
+        List<String> pieceHashes = new ArrayList<>();
+        String hash = hasher.hash(file, pieceHashes);
+
+        info = new FileInfo(file.getName(), hash, size);
+        info.setPieceHashes(pieceHashes);
+        hashCache.put(file, size, modified, info);
+        return info;
+    }
+
+    private void saveHashCache() {
+        try {
+            hashCache.save();
+        } catch (IOException e) {
+            logger.error("保存校验码缓存失败", e);
+        }
+    }
+
+    private void putFileInfo(FrameBuilder request, FileInfo info) {
+        request.putString(info.getName());
+        request.putHash(info.getHash());
+        request.putLong(info.getSize());
+        request.putInt(info.getPieceHashes().size());
+        for (String pieceHash : info.getPieceHashes()) {
+            request.putHash(pieceHash);
+        }
+    }
+
+    /**
+     * 与中央服务器同步本地目录后，分页列出文件名包含keyword的共享文件，并选择其中之一下载
+     *
+     * @param keyword 为空时列出全部文件
+     */
+    private void doList(String keyword) throws Exception {
+        syncCatalog();
+
+        List<List<String>> owners = new ArrayList<>();
+        List<FileInfo> files = catalog.search(keyword, owners);
+        if (files.isEmpty()) {
+            logger.info("没有可下载的文件");
+            return;
+        }
+
+        Scanner input = new Scanner(System.in);
+        int shown = 0;
+        while (true) {
+            int end = Math.min(files.size(), shown + LIST_PAGE_SIZE);
+            for (int i = shown; i < end; i++) {
+                FileInfo info = files.get(i);
+                logger.info("{}\t{}\t{}\t{}\t{}", i, info.getName(), info.getHash(), info.getSize(), owners.get(i));
             }
+            shown = end;
 
-            return new String(baos.toByteArray(), "UTF-8");
+            boolean hasMore = shown < files.size();
+            if (hasMore) {
+                logger.info("请选择要下载的文件序号（输入-1不进行下载，输入-2显示下一页）:");
+            } else {
+                logger.info("请选择要下载的文件序号（输入-1不进行下载）:");
+            }
+
+            int seq = input.nextInt();
+            if (seq == -2 && hasMore) {
+                continue;
+            }
+            if (seq >= 0 && seq < shown) {
+                download(files.get(seq), owners.get(seq));
+            }
+            return;
         }
-        return null;
     }
 
-    @Override
-    public void onFileDownloaded(byte[] data) {
-        try {
-            String md5;
-            try {
-                md5 = MD5Util.getMD5(data);
-            } catch (Exception e) {
-                logger.error("获取MD5失败", e);
-                return;
+    /**
+     * 从中央服务器获取本地目录版本之后的变更，变更记录已不完整时重新获取完整列表
+     */
+    private void syncCatalog() throws Exception {
+        while (true) {
+            Frame response = requestToCentral(CentralSession.newRequest(Constant.OP_SYNC).putLong(catalog.getVersion()));
+            checkResponse(response);
+
+            long version = response.getLong();
+            if (response.getInt() != 0) {
+                loadCatalog(version);
+                continue;
+            }
+
+            int count = response.getCount(MIN_CHANGE_LENGTH);
+            for (int i = 0; i < count; i++) {
+                boolean added = response.getInt() != 0;
+                String owner = response.getString();
+                FileInfo info = new FileInfo(response.getString(), response.getHash(), response.getLong());
+                if (added) {
+                    int pieceCount = response.getCount(Frame.MIN_HASH_LENGTH);
+                    List<String> pieceHashes = new ArrayList<>(pieceCount);
+                    for (int j = 0; j < pieceCount; j++) {
+                        pieceHashes.add(response.getHash());
+                    }
+                    info.setPieceHashes(pieceHashes);
+                }
+                catalog.apply(added, info, owner);
             }
+            catalog.setVersion(version);
 
-            if (!md5.equals(currentTask.getHash())) {
-                logger.error("MD5校验失败");
+            if (response.getInt() == 0) {
+                logger.info("目录已同步至版本{}，本次同步{}项变更，共{}个文件", version, count, catalog.size());
                 return;
             }
+        }
+    }
 
+    /**
+     * 分页获取完整的文件列表，完成后本地目录的版本为version
+     * 获取期间发生的变更可能已包含在列表中，此后从version开始重放变更不影响结果
+     */
+    private void loadCatalog(long version) throws Exception {
+        logger.info("重新获取完整的文件列表");
+
+        catalog.clear();
+        ListQuery query = new ListQuery().setLimit(SNAPSHOT_PAGE_SIZE);
+        while (true) {
+            FrameBuilder request = CentralSession.newRequest(Constant.OP_LIST);
+            query.writeTo(request);
+
+            Frame response = requestToCentral(request);
+            checkResponse(response);
+
+            int count = response.getCount(MIN_LISTED_FILE_LENGTH);
+            for (int i = 0; i < count; i++) {
+                FileInfo info = new FileInfo(response.getString(), response.getHash(), response.getLong());
+
+                int ownerCount = response.getCount(Frame.MIN_STRING_LENGTH);
+                List<String> fileOwners = new ArrayList<>(ownerCount);
+                for (int j = 0; j < ownerCount; j++) {
+                    fileOwners.add(response.getString());
+                }
+
+                int pieceCount = response.getCount(Frame.MIN_HASH_LENGTH);
+                List<String> pieceHashes = new ArrayList<>(pieceCount);
+                for (int j = 0; j < pieceCount; j++) {
+                    pieceHashes.add(response.getHash());
+                }
+                info.setPieceHashes(pieceHashes);
+
+                for (String owner : fileOwners) {
+                    catalog.apply(true, info, owner);
+                }
+            }
+
+            if (response.getInt() == 0) {
+                break;
+            }
+            query.setCursor(new FileInfo(response.getString(), response.getHash(), response.getLong()));
+        }
+        catalog.setVersion(version);
+    }
+
+    private void checkResponse(Frame response) throws IOException {
+        if (response.getOpcode() == Constant.OP_ERROR) {
+            throw new IOException("请求失败，原因：" + response.getString());
+        } else if (response.getOpcode() != Constant.OP_OK) {
+            throw new IOException("未知的响应头：" + response.getOpcode());
+        }
+    }
+
+    /**
+     * 在后台下载文件，不等待下载完成
+     */
+    private CompletableFuture<File> download(final FileInfo info, List<String> fileOwners) {
+        return downloads.download(info, fileOwners).whenComplete(new BiConsumer<File, Throwable>() {
+            @Override
+            public void accept(File file, Throwable failure) {
+                if (failure != null) {
+                    logger.error("文件下载失败：{}，原因：{}", info.getName(), failure.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * 同时下载文件名包含keyword且仓库中尚不存在的全部文件，等待全部下载结束
+     */
+    private void doGet(String keyword) throws Exception {
+        syncCatalog();
+
+        List<List<String>> owners = new ArrayList<>();
+        List<FileInfo> files = catalog.search(keyword, owners);
+
+        List<CompletableFuture<File>> results = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            if (!new File(repository + files.get(i).getName()).exists()) {
+                results.add(download(files.get(i), owners.get(i)));
+            }
+        }
+        logger.info("开始下载{}个文件", results.size());
+
+        int succeeded = 0;
+        for (CompletableFuture<File> result : results) {
             try {
-                FileOutputStream fos = new FileOutputStream(repository + currentTask.getName());
-                fos.write(data);
-                fos.flush();
-                fos.close();
+                result.join();
+                succeeded++;
+            } catch (CompletionException ignored) {
+                // 失败原因已在下载结束时记录
+            }
+        }
+        logger.info("下载结束，成功{}个，失败{}个", succeeded, results.size() - succeeded);
+    }
 
-                logger.info("文件已保存为：{}", repository + currentTask.getName());
-            } catch (IOException e) {
-                logger.error("保存文件过程中出现异常", e);
+    /**
+     * 通过与中央服务器的长连接发出请求并等待响应
+     */
+    private Frame requestToCentral(FrameBuilder request) throws Exception {
+        try {
+            return central.request(request).get(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
             }
-        } finally {
-            currentTaskDone = true;
+            throw e;
         }
     }
 
     public static void main(String[] args) throws Exception {
         Scanner input = new Scanner(System.in);
 
-        Peer peer = new Peer(args[0], Integer.parseInt(args[1]), args[2]);
-        new FileTransferServer(12345, args[2], peer).start();
+        // 可选的第四个参数为接受文件请求的端口，以便在同一主机上运行多个对等方
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : Constant.DEFAULT_PEER_PORT;
+        String hashAlgorithm = System.getProperty("p2p.hashAlgorithm", Constant.DEFAULT_HASH_ALGORITHM);
+        Peer peer = new Peer(args[0], Integer.parseInt(args[1]), args[2], port, hashAlgorithm);
+        FileTransferServer fileServer = new FileTransferServer(port, args[2]);
+        // thread_per_connection时上传与下载均在虚拟线程（JVM支持时）中以阻塞方式进行
+        String serverMode = System.getProperty("p2p.serverMode");
+        if (serverMode != null) {
+            fileServer.setServerMode(ServerMode.valueOf(serverMode.toUpperCase()));
+            peer.setVirtualThreads(fileServer.getServerMode() == ServerMode.THREAD_PER_CONNECTION);
+        }
+        String mode = System.getProperty("p2p.transferMode");
+        if (mode != null) {
+            fileServer.setTransferMode(TransferMode.valueOf(mode.toUpperCase()));
+        }
+        String maxUploads = System.getProperty("p2p.maxUploads");
+        if (maxUploads != null) {
+            fileServer.setMaxConcurrentUploads(Integer.parseInt(maxUploads));
+        }
+        String maxUploadRate = System.getProperty("p2p.maxUploadRate");
+        if (maxUploadRate != null) {
+            fileServer.setMaxUploadRate(Long.parseLong(maxUploadRate));
+        }
+        String maxUploadRatePerConnection = System.getProperty("p2p.maxUploadRatePerConnection");
+        if (maxUploadRatePerConnection != null) {
+            fileServer.setMaxUploadRatePerConnection(Long.parseLong(maxUploadRatePerConnection));
+        }
+        fileServer.start();
+        String metricsPort = System.getProperty("p2p.metricsPort");
+        if (metricsPort != null) {
+            MetricsEndpoint endpoint = new MetricsEndpoint(Integer.parseInt(metricsPort));
+            endpoint.add(fileServer.getMetrics());
+            endpoint.start();
+        }
+        String maxDownloads = System.getProperty("p2p.maxDownloads");
+        if (maxDownloads != null) {
+            peer.setMaxConcurrentDownloads(Integer.parseInt(maxDownloads));
+        }
 
         while (true) {
             logger.info("请输入指令");
@@ -236,8 +667,22 @@ public class Peer implements FileTransferCallback {
                 peer.doConnect();
             } else if (cmd.equals(Constant.CMD_ADD)) {
                 peer.doAdd();
-            } else if (cmd.equals(Constant.CMD_LIST)) {
-                peer.doList();
+            } else if (cmd.equals(Constant.CMD_ADD_ALL)) {
+                peer.doAddAll();
+            } else if (cmd.equals(Constant.CMD_LIST) || cmd.startsWith(Constant.CMD_LIST + " ")) {
+                // list后可跟文件名关键字
+                peer.doList(cmd.substring(Constant.CMD_LIST.length()).trim());
+            } else if (cmd.startsWith(Constant.CMD_GET + " ")) {
+                peer.doGet(cmd.substring(Constant.CMD_GET.length()).trim());
+            } else if (cmd.startsWith(Constant.CMD_LIMIT + " ")) {
+                // limit后跟总上传速率与单个连接的上传速率（字节/秒），0表示不限
+                String[] rates = cmd.substring(Constant.CMD_LIMIT.length()).trim().split("\\s+");
+                fileServer.setMaxUploadRate(Long.parseLong(rates[0]));
+                if (rates.length > 1) {
+                    fileServer.setMaxUploadRatePerConnection(Long.parseLong(rates[1]));
+                }
+                logger.info("上传速率上限：总计{}字节/秒，单个连接{}字节/秒",
+                        fileServer.getMaxUploadRate(), fileServer.getMaxUploadRatePerConnection());
             } else if (cmd.equals(Constant.CMD_QUIT)) {
                 peer.doQuit();
             }
@@ -0,0 +1,112 @@
+package com.nov21th.tcp.p2p;
+
+import com.nov21th.common.Constant;
+import com.nov21th.tcp.codec.Frame;
+import com.nov21th.tcp.codec.FrameCodec;
+import com.nov21th.tcp.file.RangeSink;
+import com.nov21th.util.IPUtil;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 与文件拥有者之间的阻塞连接，请求与文件数据均经由该连接往返
+ * <p>
+ * 拥有者按请求的顺序响应，因此可以连续发出多个请求后再依次读取响应。
+ * 发送与接收可分别在两个线程中进行。
+ */
+class PeerConnection {
+
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String owner;
+
+    private final Socket socket;
+
+    private final ReadableByteChannel in;
+
+    private final WritableByteChannel out;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * @param owner       "IP:端口"形式的拥有者标识，未带端口时使用默认端口
+     * @param readTimeout 持续没有收到数据的最长时间，为0时不限
+     */
+    PeerConnection(String owner, int readTimeout) throws IOException {
+        this.owner = owner;
+        this.socket = new Socket();
+        try {
+            socket.connect(IPUtil.parseAddress(owner, Constant.DEFAULT_PEER_PORT), CONNECT_TIMEOUT);
+            socket.setSoTimeout(readTimeout);
+            in = Channels.newChannel(socket.getInputStream());
+            out = Channels.newChannel(socket.getOutputStream());
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    String getOwner() {
+        return owner;
+    }
+
+    synchronized void send(ByteBuffer frame) throws IOException {
+        FrameCodec.writeFrame(out, frame);
+    }
+
+    /**
+     * 读取下一个响应，连接已关闭时抛出{@link EOFException}
+     */
+    Frame receive() throws IOException {
+        Frame frame = FrameCodec.readFrame(in);
+        if (frame == null) {
+            throw new EOFException("对等方关闭了连接：" + owner);
+        }
+        return frame;
+    }
+
+    /**
+     * 读取紧跟在响应之后的length字节数据，依次写入sink
+     */
+    void receiveBulk(long length, RangeSink sink) throws IOException {
+        while (length > 0) {
+            buffer.clear();
+            if (length < buffer.capacity()) {
+                buffer.limit((int) length);
+            }
+            int n = in.read(buffer);
+            if (n < 0) {
+                throw new EOFException("对等方关闭了连接：" + owner);
+            }
+            buffer.flip();
+            sink.write(buffer);
+            length -= n;
+        }
+    }
+
+    /**
+     * 读取紧跟在响应之后的length字节数据
+     */
+    byte[] receiveBulk(int length) throws IOException {
+        byte[] data = new byte[length];
+        if (!FrameCodec.readFully(in, ByteBuffer.wrap(data))) {
+            throw new EOFException("对等方关闭了连接：" + owner);
+        }
+        return data;
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
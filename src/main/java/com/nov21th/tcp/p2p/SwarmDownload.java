@@ -0,0 +1,379 @@
+package com.nov21th.tcp.p2p;
+
+import com.nov21th.common.Constant;
+import com.nov21th.tcp.codec.Frame;
+import com.nov21th.tcp.codec.FrameBuilder;
+import com.nov21th.util.MerkleTree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 从多个拥有者处并行下载同一文件的各个分块
+ * <p>
+ * 每个拥有者都持有完整的文件，因此各块的稀有度相同，按轮询方式将缺失的块分派给各拥有者，
+ * 每个拥有者同时最多处理{@link #MAX_IN_FLIGHT_PER_OWNER}个请求。
+ * 与每个拥有者保持一个连接，请求连续发出，文件块经由同一连接按请求的顺序返回，由各连接的接收线程读取。
+ * 拥有者无法连接、连接中断或多次超时后即被移除，分派给它的块重新进入待下载状态。
+ */
+class SwarmDownload {
+
+    private static final Logger logger = LoggerFactory.getLogger(SwarmDownload.class);
+
+    private static final int MAX_IN_FLIGHT_PER_OWNER = 4;
+
+    /**
+     * 单个块从请求到收到的最长等待时间
+     */
+    private static final long PIECE_TIMEOUT = 30000;
+
+    /**
+     * 拥有者累计超时或校验失败达到该次数后不再使用
+     */
+    private static final int MAX_OWNER_FAILURES = 3;
+
+    private enum PieceState {
+        MISSING, REQUESTED, DONE
+    }
+
+    private final FileInfo info;
+
+    private final File target;
+
+    private final PartialDownload partial;
+
+    private final MerkleTree hasher;
+
+    private final List<String> owners;
+
+    private final PieceState[] states;
+
+    private final String[] requestedFrom;
+
+    private final long[] requestedAt;
+
+    private final Map<String, Integer> inFlight = new HashMap<>();
+
+    private final Map<String, Integer> failures = new HashMap<>();
+
+    /**
+     * 与各拥有者之间的连接，由调度线程创建，拥有者被移除时关闭
+     */
+    private final Map<String, PeerConnection> connections = new ConcurrentHashMap<>();
+
+    private final ThreadFactory receivers;
+
+    private int nextOwner;
+
+    private int remaining;
+
+    /**
+     * @param partial 已下载的块（在之前的下载中校验通过后写入）不再重新请求
+     * @param hasher    校验收到的块，分块大小应与{@link Constant#PIECE_SIZE}一致
+     * @param receivers 创建各连接的接收线程
+     */
+    SwarmDownload(PartialDownload partial, List<String> owners, String repository, MerkleTree hasher,
+                  ThreadFactory receivers) {
+        this.partial = partial;
+        this.hasher = hasher;
+        this.receivers = receivers;
+        this.info = partial.getInfo();
+        this.owners = new ArrayList<>(owners);
+        this.target = new File(repository + info.getName());
+
+        int pieceCount = info.getPieceHashes().size();
+        states = new PieceState[pieceCount];
+        requestedFrom = new String[pieceCount];
+        requestedAt = new long[pieceCount];
+        for (int i = 0; i < pieceCount; i++) {
+            long start = (long) i * Constant.PIECE_SIZE;
+            long end = Math.min(start + Constant.PIECE_SIZE, info.getSize());
+            if (partial.isCovered(start, end)) {
+                states[i] = PieceState.DONE;
+            } else {
+                states[i] = PieceState.MISSING;
+                remaining++;
+            }
+        }
+
+        for (String owner : this.owners) {
+            inFlight.put(owner, 0);
+        }
+    }
+
+    /**
+     * 在调用线程中调度下载，直到全部分块完成或已无可用的拥有者
+     *
+     * @return 下载成功时返回true
+     */
+    boolean run() throws Exception {
+        boolean success = false;
+        try {
+            while (true) {
+                List<String[]> requests;
+                synchronized (this) {
+                    if (remaining == 0) {
+                        break;
+                    }
+                    if (owners.isEmpty()) {
+                        logger.error("已无可用的文件拥有者：{}", info.getName());
+                        return false;
+                    }
+
+                    expireTimedOut();
+                    requests = assign();
+                    if (requests.isEmpty()) {
+                        wait(1000);
+                        continue;
+                    }
+                }
+
+                // 发送请求时可能因连接超时而阻塞，此时不持有锁，以免阻塞接收回调
+                List<String> unreachable = send(requests);
+                synchronized (this) {
+                    for (String owner : unreachable) {
+                        removeOwner(owner);
+                    }
+                }
+            }
+
+            partial.finish(target);
+            success = true;
+            logger.info("文件已保存为：{}", target);
+            return true;
+        } finally {
+            // 先注销再关闭，接收线程据此不再将连接关闭视为中断
+            for (String owner : connections.keySet()) {
+                PeerConnection conn = connections.remove(owner);
+                if (conn != null) {
+                    conn.close();
+                }
+            }
+            if (!success) {
+                partial.close();
+            }
+        }
+    }
+
+    /**
+     * 接收到owner发来的一个分块，校验通过后写入对应位置
+     * <p>
+     * 该块可能已因超时改派给其他拥有者，因此校验失败时只计入发送方，仅当请求仍属于发送方时才释放该请求。
+     */
+    void onPiece(String owner, int index, byte[] data) {
+        if (index < 0 || index >= states.length) {
+            logger.error("无效的块序号：{}#{}", info.getName(), index);
+            return;
+        }
+
+        synchronized (this) {
+            if (states[index] == PieceState.DONE) {
+                return;
+            }
+        }
+
+        boolean valid = false;
+        try {
+            valid = hasher.verifyBlock(index, ByteBuffer.wrap(data), info.getPieceHashes());
+            if (valid) {
+                partial.write((long) index * Constant.PIECE_SIZE, ByteBuffer.wrap(data));
+            } else {
+                logger.error("文件块校验失败：{}#{}，来自：{}", info.getName(), index, owner);
+            }
+        } catch (Exception e) {
+            logger.error("保存文件块过程中出现异常", e);
+            valid = false;
+        }
+
+        synchronized (this) {
+            if (states[index] == PieceState.DONE) {
+                return;
+            }
+            if (valid) {
+                release(index);
+                states[index] = PieceState.DONE;
+                remaining--;
+            } else {
+                if (owner.equals(requestedFrom[index])) {
+                    release(index);
+                    states[index] = PieceState.MISSING;
+                }
+                penalize(owner);
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * 按轮询方式将缺失的块分派给尚有余量的拥有者
+     *
+     * @return 待发送的请求，每项为{拥有者, 块序号}
+     */
+    private List<String[]> assign() {
+        List<String[]> requests = new ArrayList<>();
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] != PieceState.MISSING) {
+                continue;
+            }
+
+            String owner = nextAvailableOwner();
+            if (owner == null) {
+                break;
+            }
+
+            states[i] = PieceState.REQUESTED;
+            requestedFrom[i] = owner;
+            requestedAt[i] = System.currentTimeMillis();
+            inFlight.put(owner, inFlight.get(owner) + 1);
+            requests.add(new String[]{owner, String.valueOf(i)});
+        }
+        return requests;
+    }
+
+    private String nextAvailableOwner() {
+        for (int i = 0; i < owners.size(); i++) {
+            String owner = owners.get((nextOwner + i) % owners.size());
+            if (inFlight.get(owner) < MAX_IN_FLIGHT_PER_OWNER) {
+                nextOwner = (nextOwner + i + 1) % owners.size();
+                return owner;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 依次发送请求，尚未与拥有者建立连接时先建立连接
+     *
+     * @return 无法连接的拥有者
+     */
+    private List<String> send(List<String[]> requests) {
+        List<String> unreachable = new ArrayList<>();
+        for (String[] request : requests) {
+            String owner = request[0];
+            if (unreachable.contains(owner)) {
+                continue;
+            }
+
+            ByteBuffer msg = new FrameBuilder(Constant.OP_FETCH)
+                    .putString(info.getName())
+                    .putInt(Integer.parseInt(request[1]))
+                    .build();
+            try {
+                PeerConnection conn = connections.get(owner);
+                if (conn == null) {
+                    conn = new PeerConnection(owner, 0);
+                    connections.put(owner, conn);
+                    startReceiver(conn);
+                }
+                conn.send(msg);
+            } catch (IOException e) {
+                logger.error("无法连接文件拥有者：{}", owner);
+                unreachable.add(owner);
+            }
+        }
+        return unreachable;
+    }
+
+    /**
+     * 在单独的线程中依次读取拥有者返回的文件块，连接中断时移除该拥有者
+     */
+    private void startReceiver(final PeerConnection conn) {
+        Thread receiver = receivers.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Frame header = conn.receive();
+                        if (header.getOpcode() != Constant.OP_PIECE) {
+                            throw new IOException(header.getOpcode() == Constant.OP_ERROR ? header.getString() : "对等方的响应与请求不符");
+                        }
+                        header.getString();
+                        int index = header.getInt();
+                        long length = header.getLong();
+                        if (length < 0 || length > Constant.PIECE_SIZE) {
+                            throw new IOException("文件块的长度无效：" + info.getName() + "#" + index);
+                        }
+                        onPiece(conn.getOwner(), index, conn.receiveBulk((int) length));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // 对等方发来的数据无法解析时同样视为连接中断，以免接收线程悄然退出而其请求的块一直等到超时
+                    synchronized (SwarmDownload.this) {
+                        if (connections.get(conn.getOwner()) == conn) {
+                            logger.error("与文件拥有者的连接中断：{}，{}", conn.getOwner(), e.toString());
+                            removeOwner(conn.getOwner());
+                            SwarmDownload.this.notifyAll();
+                        }
+                    }
+                }
+            }
+        });
+        receiver.setName("swarm-" + conn.getOwner());
+        receiver.start();
+    }
+
+    private void expireTimedOut() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] == PieceState.REQUESTED && now - requestedAt[i] > PIECE_TIMEOUT) {
+                String owner = requestedFrom[i];
+                logger.error("文件块请求超时：{}#{}，拥有者：{}", info.getName(), i, owner);
+
+                release(i);
+                states[i] = PieceState.MISSING;
+                penalize(owner);
+            }
+        }
+    }
+
+    private void penalize(String owner) {
+        Integer count = failures.get(owner);
+        count = count == null ? 1 : count + 1;
+        failures.put(owner, count);
+
+        if (count >= MAX_OWNER_FAILURES) {
+            removeOwner(owner);
+        }
+    }
+
+    /**
+     * 移除拥有者，分派给它的块重新进入待下载状态
+     */
+    private void removeOwner(String owner) {
+        PeerConnection conn = connections.remove(owner);
+        if (conn != null) {
+            conn.close();
+        }
+        if (!owners.remove(owner)) {
+            return;
+        }
+        logger.info("不再从该拥有者处下载：{}", owner);
+
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] == PieceState.REQUESTED && owner.equals(requestedFrom[i])) {
+                states[i] = PieceState.MISSING;
+                requestedFrom[i] = null;
+            }
+        }
+        inFlight.remove(owner);
+        if (!owners.isEmpty()) {
+            nextOwner %= owners.size();
+        }
+    }
+
+    private void release(int index) {
+        String owner = requestedFrom[index];
+        if (owner != null && inFlight.containsKey(owner)) {
+            inFlight.put(owner, inFlight.get(owner) - 1);
+        }
+        requestedFrom[index] = null;
+    }
+}
@@ -1,5 +1,6 @@
 package com.nov21th.util;
 
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 
 /**
@@ -18,4 +19,15 @@ public abstract class IPUtil {
         return ip;
     }
 
+    /**
+     * 解析"IP:端口"形式的地址，未带端口时使用defaultPort
+     */
+    public static InetSocketAddress parseAddress(String address, int defaultPort) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            return new InetSocketAddress(address, defaultPort);
+        }
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
 }
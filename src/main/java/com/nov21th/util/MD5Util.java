@@ -2,7 +2,9 @@ package com.nov21th.util;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 
 /**
@@ -11,24 +13,51 @@ import java.security.MessageDigest;
  */
 public class MD5Util {
 
+    /**
+     * 不小于该大小的文件通过内存映射读取
+     */
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+
+    /**
+     * 每次映射的最大长度
+     */
+    private static final long MAP_WINDOW = 64 * 1024 * 1024;
+
     public static String getMD5(byte[] data) throws Exception {
         MessageDigest md5 = MessageDigest.getInstance("MD5");
         md5.update(data);
         return toHexString(md5.digest());
     }
 
+    /**
+     * 计算整个文件的MD5，较大的文件通过内存映射分段读取，省去从内核缓冲区到Java数组的拷贝
+     */
     public static String getMD5(File file) throws Exception {
-        InputStream fis = new FileInputStream(file);
-        byte buffer[] = new byte[1024];
         MessageDigest md5 = MessageDigest.getInstance("MD5");
-        for (int bytesRead; (bytesRead = fis.read(buffer)) > 0; ) {
-            md5.update(buffer, 0, bytesRead);
+
+        FileChannel fc = new FileInputStream(file).getChannel();
+        try {
+            long size = fc.size();
+            if (size < MAP_THRESHOLD) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining() && fc.read(buffer) >= 0) {
+                }
+                buffer.flip();
+                md5.update(buffer);
+            } else {
+                for (long position = 0; position < size; position += MAP_WINDOW) {
+                    MappedByteBuffer mapped = fc.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+                    md5.update(mapped);
+                }
+            }
+        } finally {
+            fc.close();
         }
-        fis.close();
+
         return toHexString(md5.digest());
     }
 
-    private static String toHexString(byte[] buffer) {
+    public static String toHexString(byte[] buffer) {
         StringBuilder sb = new StringBuilder();
         for (byte b : buffer) {
             String temp = Integer.toHexString(b & 0xFF);
@@ -0,0 +1,259 @@
+package com.nov21th.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 按固定大小分块计算文件的Merkle树：叶子为0x00与块数据拼接后的摘要，父节点为0x01与两个子节点摘要拼接后的摘要，
+ * 落单的节点直接上升一层，根即为文件的校验码
+ * <p>
+ * 叶子与父节点的前缀不同，无法把两个子节点的摘要当作一块数据冒充某个父节点。
+ * 各块的摘要在{@link ForkJoinPool}中并行计算，耗时随核数增加而缩短。
+ * 公布各块的摘要后，每块收到即可单独校验，各块的摘要整体则以根校验。
+ */
+public class MerkleTree {
+
+    /**
+     * 小于该大小的文件直接读入内存，不经内存映射
+     */
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+
+    /**
+     * 每个子任务映射的最大长度，避免映射的数量随文件大小增长
+     */
+    private static final long MAP_WINDOW = 64 * 1024 * 1024;
+
+    /**
+     * 每个工作线程平均分到的子任务数，子任务过粗时各线程的负载不均
+     */
+    private static final int TASKS_PER_THREAD = 4;
+
+    /**
+     * 计算叶子摘要时置于块数据之前的前缀
+     */
+    private static final byte LEAF_PREFIX = 0x00;
+
+    /**
+     * 计算父节点摘要时置于子节点摘要之前的前缀
+     */
+    private static final byte NODE_PREFIX = 0x01;
+
+    private final String algorithm;
+
+    private final int blockSize;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * 在公共的{@link ForkJoinPool}中计算
+     *
+     * @param algorithm {@link MessageDigest}支持的摘要算法，如MD5、SHA-256
+     */
+    public MerkleTree(String algorithm, int blockSize) {
+        this(algorithm, blockSize, ForkJoinPool.commonPool());
+    }
+
+    public MerkleTree(String algorithm, int blockSize, ForkJoinPool pool) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("分块大小必须为正数");
+        }
+        try {
+            MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("不支持的摘要算法：" + algorithm, e);
+        }
+
+        this.algorithm = algorithm;
+        this.blockSize = blockSize;
+        this.pool = pool;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * 计算文件的Merkle树
+     *
+     * @param blockHashes 各块的摘要依次追加到其中
+     * @return 树的根
+     */
+    public String hash(File file, List<String> blockHashes) throws IOException {
+        List<String> hashes = hashBlocks(file);
+        blockHashes.addAll(hashes);
+        return getRoot(hashes);
+    }
+
+    /**
+     * 并行计算文件各块的摘要
+     */
+    public List<String> hashBlocks(File file) throws IOException {
+        FileChannel fc = new FileInputStream(file).getChannel();
+        try {
+            long size = fc.size();
+            long count = (size + blockSize - 1) / blockSize;
+            if (count > Integer.MAX_VALUE) {
+                throw new IOException("文件分块过多：" + file);
+            }
+
+            String[] hashes = new String[(int) count];
+            if (size < MAP_THRESHOLD) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining() && fc.read(buffer) >= 0) {
+                }
+                buffer.flip();
+                hashBlocks(buffer, hashes, 0);
+            } else {
+                int parallelism = pool.getParallelism() * TASKS_PER_THREAD;
+                int grain = (int) Math.max(1, Math.min(MAP_WINDOW / blockSize, (count + parallelism - 1) / parallelism));
+                try {
+                    pool.invoke(new HashTask(fc, size, hashes, 0, hashes.length, grain));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+            return new ArrayList<>(Arrays.asList(hashes));
+        } finally {
+            fc.close();
+        }
+    }
+
+    /**
+     * 计算一块数据的摘要
+     */
+    public String hashBlock(ByteBuffer data) {
+        MessageDigest digest = newDigest();
+        digest.update(LEAF_PREFIX);
+        digest.update(data);
+        return MD5Util.toHexString(digest.digest());
+    }
+
+    /**
+     * 第index块的数据data是否与公布的摘要相符
+     */
+    public boolean verifyBlock(int index, ByteBuffer data, List<String> blockHashes) {
+        return index >= 0 && index < blockHashes.size() && hashBlock(data).equals(blockHashes.get(index));
+    }
+
+    /**
+     * 由各块的摘要计算树的根，没有分块（空文件）时为空数据的摘要
+     */
+    public String getRoot(List<String> blockHashes) {
+        MessageDigest digest = newDigest();
+        if (blockHashes.isEmpty()) {
+            return MD5Util.toHexString(digest.digest());
+        }
+
+        List<byte[]> level = new ArrayList<>(blockHashes.size());
+        for (String hash : blockHashes) {
+            level.add(fromHexString(hash));
+        }
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i + 1 < level.size(); i += 2) {
+                digest.update(NODE_PREFIX);
+                digest.update(level.get(i));
+                digest.update(level.get(i + 1));
+                parents.add(digest.digest());
+            }
+            if (level.size() % 2 == 1) {
+                parents.add(level.get(level.size() - 1));
+            }
+            level = parents;
+        }
+        return MD5Util.toHexString(level.get(0));
+    }
+
+    /**
+     * 依次计算buffer中各块的摘要，填入hashes中从first开始的位置，buffer从某块的起始处开始
+     */
+    private void hashBlocks(ByteBuffer buffer, String[] hashes, int first) {
+        MessageDigest digest = newDigest();
+        for (int i = first; buffer.position() < buffer.capacity(); i++) {
+            buffer.limit(Math.min(buffer.position() + blockSize, buffer.capacity()));
+            digest.update(LEAF_PREFIX);
+            digest.update(buffer);
+            hashes[i] = MD5Util.toHexString(digest.digest());
+        }
+    }
+
+    private MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] fromHexString(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * 计算[from, to)各块的摘要，块数超过grain时二分后并行计算，否则映射这些块后依次计算
+     */
+    private class HashTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+
+        private final long size;
+
+        private final String[] hashes;
+
+        private final int from;
+
+        private final int to;
+
+        private final int grain;
+
+        private HashTask(FileChannel channel, long size, String[] hashes, int from, int to, int grain) {
+            this.channel = channel;
+            this.size = size;
+            this.hashes = hashes;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > grain) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new HashTask(channel, size, hashes, from, middle, grain),
+                        new HashTask(channel, size, hashes, middle, to, grain));
+                return;
+            }
+
+            long start = (long) from * blockSize;
+            long end = Math.min((long) to * blockSize, size);
+            try {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                hashBlocks(mapped, hashes, from);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.nov21th.util;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 限制频率的INFO日志，用于每个连接、每个请求都会记录一次的日志
+ * <p>
+ * 每秒最多记录permits条，超出的只计数，下一秒第一次记录前先输出被省略的条数。
+ * 未达到上限时与直接调用{@link Logger}相同，达到上限后只有一次读操作与一次计数。
+ */
+public class RateLimitedLogger {
+
+    private static final long INTERVAL = 1000000000L;
+
+    private final Logger logger;
+
+    private final int permits;
+
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+
+    private final AtomicInteger used = new AtomicInteger();
+
+    private final LongAdder suppressed = new LongAdder();
+
+    public RateLimitedLogger(Logger logger, int permits) {
+        this.logger = logger;
+        this.permits = permits;
+    }
+
+    public void info(String format, Object arg) {
+        if (acquire()) {
+            logger.info(format, arg);
+        }
+    }
+
+    public void info(String format, Object arg1, Object arg2) {
+        if (acquire()) {
+            logger.info(format, arg1, arg2);
+        }
+    }
+
+    public void info(String format, Object... args) {
+        if (acquire()) {
+            logger.info(format, args);
+        }
+    }
+
+    private boolean acquire() {
+        if (!logger.isInfoEnabled()) {
+            return false;
+        }
+
+        long now = System.nanoTime();
+        long start = windowStart.get();
+        if (now - start >= INTERVAL && windowStart.compareAndSet(start, now)) {
+            used.set(0);
+            long skipped = suppressed.sumThenReset();
+            if (skipped > 0) {
+                logger.info("日志过于频繁，已省略{}条", skipped);
+            }
+        }
+
+        if (used.get() < permits && used.incrementAndGet() <= permits) {
+            return true;
+        }
+        suppressed.increment();
+        return false;
+    }
+}
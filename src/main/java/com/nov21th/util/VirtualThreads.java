@@ -0,0 +1,62 @@
+package com.nov21th.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 虚拟线程（JDK 21及以上）的工厂方法
+ * <p>
+ * 项目以Java 8编译，经由反射调用Thread.ofVirtual()，运行于不支持虚拟线程的JVM上时退回平台线程。
+ */
+public abstract class VirtualThreads {
+
+    /**
+     * Thread.Builder.OfVirtual，不支持虚拟线程时为null
+     */
+    private static final Object BUILDER = virtualBuilder();
+
+    private static Object virtualBuilder() {
+        try {
+            return Thread.class.getMethod("ofVirtual").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            // JDK 19、20中未开启预览特性时抛出UnsupportedOperationException
+            return null;
+        }
+    }
+
+    public static boolean isSupported() {
+        return BUILDER != null;
+    }
+
+    /**
+     * 创建名称为prefix加序号的线程
+     *
+     * @param virtual 为true且JVM支持时创建虚拟线程，否则创建守护平台线程
+     */
+    public static ThreadFactory newFactory(final String prefix, boolean virtual) {
+        if (virtual && BUILDER != null) {
+            try {
+                Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+                Object named = builderType.getMethod("name", String.class, long.class).invoke(BUILDER, prefix, 1L);
+                return (ThreadFactory) builderType.getMethod("factory").invoke(named);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("无法创建虚拟线程工厂", e);
+            }
+        }
+
+        return new ThreadFactory() {
+            private final AtomicInteger seq = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + seq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
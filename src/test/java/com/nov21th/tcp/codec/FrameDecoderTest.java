@@ -0,0 +1,251 @@
+package com.nov21th.tcp.codec;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameDecoderTest {
+
+    private static final byte OP_SMALL = 1;
+
+    private static final byte OP_LARGE = 2;
+
+    private static final byte OP_EMPTY = 3;
+
+    private static final byte OP_BULK = 4;
+
+    @Test
+    public void decodesFramesFedByteByByte() throws Exception {
+        byte[] stream = concat(frame(OP_SMALL, "hello"), frame(OP_LARGE, repeat('x', 20000)), frame(OP_EMPTY));
+
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(recorder);
+        for (byte b : stream) {
+            decoder.decode(ByteBuffer.wrap(new byte[]{b}));
+        }
+
+        assertEquals(Arrays.asList("1:hello", "2:" + repeat('x', 20000), "3:"), recorder.events);
+    }
+
+    @Test
+    public void decodesSeveralFramesInOneChunk() throws Exception {
+        byte[] stream = concat(frame(OP_SMALL, "a"), frame(OP_EMPTY), frame(OP_SMALL, "b", "c"));
+
+        Recorder recorder = new Recorder();
+        ByteBuffer chunk = ByteBuffer.wrap(stream);
+        new FrameDecoder(recorder).decode(chunk);
+
+        assertEquals(Arrays.asList("1:a", "3:", "1:bc"), recorder.events);
+        assertFalse(chunk.hasRemaining());
+    }
+
+    @Test
+    public void decodesFramesSplitAtArbitraryPoints() throws Exception {
+        String large = repeat('y', 60000);
+        byte[] stream = concat(frame(OP_SMALL, "first"), frame(OP_LARGE, large, large), frame(OP_SMALL, "last"));
+        List<String> expected = Arrays.asList("1:first", "2:" + large + large, "1:last");
+
+        Random random = new Random(0);
+        for (int round = 0; round < 50; round++) {
+            Recorder recorder = new Recorder();
+            FrameDecoder decoder = new FrameDecoder(recorder);
+            for (int position = 0; position < stream.length; ) {
+                int n = Math.min(stream.length - position, 1 + random.nextInt(9000));
+                decoder.decode(ByteBuffer.wrap(stream, position, n));
+                position += n;
+            }
+            assertEquals(expected, recorder.events);
+        }
+    }
+
+    @Test
+    public void rejectsLengthAboveLimit() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(new Recorder(), 1024);
+        try {
+            // 只有帧头，负载尚未到达时即应拒绝
+            decoder.decode(header(OP_SMALL, 1025));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsNegativeLength() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(new Recorder());
+        try {
+            decoder.decode(header(OP_SMALL, -1));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsOversizeHeaderSplitAcrossChunks() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(new Recorder(), 1024);
+        ByteBuffer header = header(OP_SMALL, Integer.MAX_VALUE);
+        decoder.decode(ByteBuffer.wrap(header.array(), 0, 3));
+        try {
+            decoder.decode(ByteBuffer.wrap(header.array(), 3, 2));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void appliesLimitPerOpcode() throws Exception {
+        FrameDecoder.LengthLimit limit = new FrameDecoder.LengthLimit() {
+            @Override
+            public int getMaxFrameLength(byte opcode) {
+                return opcode == OP_LARGE ? 64 * 1024 : 16;
+            }
+        };
+
+        Recorder recorder = new Recorder();
+        new FrameDecoder(recorder, limit).decode(ByteBuffer.wrap(frame(OP_LARGE, repeat('z', 30000))));
+        assertEquals(1, recorder.events.size());
+
+        try {
+            new FrameDecoder(new Recorder(), limit).decode(ByteBuffer.wrap(frame(OP_SMALL, repeat('z', 30000))));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void switchesToBulkAndBackInOneChunk() throws Exception {
+        byte[] data = new byte[3000];
+        new Random(1).nextBytes(data);
+        byte[] stream = concat(frame(OP_BULK, "file"), data, frame(OP_SMALL, "after"));
+
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(recorder);
+        recorder.decoder = decoder;
+        recorder.bulkLength = data.length;
+        decoder.decode(ByteBuffer.wrap(stream));
+
+        assertEquals(Arrays.asList("4:file", "bulk-end", "1:after"), recorder.events);
+        assertArrayEquals(data, recorder.bulk.toByteArray());
+        assertFalse(decoder.isInBulk());
+    }
+
+    @Test
+    public void switchesToBulkAndBackByteByByte() throws Exception {
+        byte[] data = new byte[300];
+        new Random(2).nextBytes(data);
+        byte[] stream = concat(frame(OP_BULK, "file"), data, frame(OP_SMALL, "after"));
+
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(recorder);
+        recorder.decoder = decoder;
+        recorder.bulkLength = data.length;
+        for (int i = 0; i < stream.length; i++) {
+            decoder.decode(ByteBuffer.wrap(stream, i, 1));
+            if (i == frame(OP_BULK, "file").length) {
+                assertTrue(decoder.isInBulk());
+                assertEquals(data.length - 1, decoder.getBulkRemaining());
+            }
+        }
+
+        assertEquals(Arrays.asList("4:file", "bulk-end", "1:after"), recorder.events);
+        assertArrayEquals(data, recorder.bulk.toByteArray());
+    }
+
+    @Test
+    public void endsEmptyBulkImmediately() throws Exception {
+        byte[] stream = concat(frame(OP_BULK, "empty"), frame(OP_SMALL, "next"));
+
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(recorder);
+        recorder.decoder = decoder;
+        recorder.bulkLength = 0;
+        decoder.decode(ByteBuffer.wrap(stream));
+
+        assertEquals(Arrays.asList("4:empty", "bulk-end", "1:next"), recorder.events);
+        assertEquals(0, recorder.bulk.size());
+    }
+
+    /**
+     * 记录解码出的帧与原始数据，帧记为"操作码:各字符串字段"
+     */
+    private static class Recorder implements FrameDecoder.Handler {
+
+        private final List<String> events = new ArrayList<>();
+
+        private final ByteArrayOutputStream bulk = new ByteArrayOutputStream();
+
+        /**
+         * 收到OP_BULK时声明之后的原始数据长度
+         */
+        private FrameDecoder decoder;
+
+        private long bulkLength;
+
+        @Override
+        public void onFrame(Frame frame) throws Exception {
+            StringBuilder sb = new StringBuilder().append(frame.getOpcode()).append(':');
+            while (frame.hasRemaining()) {
+                sb.append(frame.getString());
+            }
+            events.add(sb.toString());
+
+            if (frame.getOpcode() == OP_BULK) {
+                decoder.expectBulk(bulkLength);
+            }
+        }
+
+        @Override
+        public void onBulkData(ByteBuffer chunk) throws Exception {
+            while (chunk.hasRemaining()) {
+                bulk.write(chunk.get());
+            }
+        }
+
+        @Override
+        public void onBulkEnd() throws Exception {
+            events.add("bulk-end");
+        }
+    }
+
+    private static byte[] frame(byte opcode, String... fields) {
+        FrameBuilder builder = new FrameBuilder(opcode);
+        for (String field : fields) {
+            builder.putString(field);
+        }
+        ByteBuffer frame = builder.build();
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return bytes;
+    }
+
+    private static ByteBuffer header(byte opcode, int length) {
+        ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH);
+        header.put(opcode).putInt(length).flip();
+        return header;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
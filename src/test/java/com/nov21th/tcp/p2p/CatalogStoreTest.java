@@ -0,0 +1,259 @@
+package com.nov21th.tcp.p2p;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CatalogStoreTest {
+
+    private static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void discardsTornTailRecord() throws Exception {
+        File dir = folder.newFolder();
+        Catalog catalog = Catalog.open(dir, SEGMENT_SIZE);
+        catalog.index.add(file(1), "p:1");
+        catalog.store.sync();
+        File segment = onlySegment(dir);
+        long firstEnd = segment.length();
+        catalog.index.add(file(2), "p:1");
+        catalog.store.sync();
+        long secondEnd = segment.length();
+        catalog.store.close();
+
+        // 第二条记录只写出了一半
+        truncate(segment, firstEnd + (secondEnd - firstEnd) / 2);
+
+        Catalog restored = Catalog.open(dir, SEGMENT_SIZE);
+        assertEquals(owners("file-1", "p:1"), restored.contents());
+        assertEquals(1, restored.changeLog.getVersion());
+        assertEquals(firstEnd, segment.length());
+
+        // 截断后记录的变更可以正常恢复
+        restored.index.add(file(3), "p:2");
+        restored.store.close();
+
+        Catalog again = Catalog.open(dir, SEGMENT_SIZE);
+        Map<String, Set<String>> expected = owners("file-1", "p:1");
+        expected.putAll(owners("file-3", "p:2"));
+        assertEquals(expected, again.contents());
+        assertEquals(2, again.changeLog.getVersion());
+        again.store.close();
+    }
+
+    @Test
+    public void discardsTailRecordWithBadChecksum() throws Exception {
+        File dir = folder.newFolder();
+        Catalog catalog = Catalog.open(dir, SEGMENT_SIZE);
+        catalog.index.add(file(1), "p:1");
+        catalog.store.sync();
+        File segment = onlySegment(dir);
+        long firstEnd = segment.length();
+        catalog.index.add(file(2), "p:1");
+        catalog.store.close();
+
+        // 破坏第二条记录负载中的一个字节，长度不变但CRC不符
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            long position = firstEnd + 10;
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+
+        Catalog restored = Catalog.open(dir, SEGMENT_SIZE);
+        assertEquals(owners("file-1", "p:1"), restored.contents());
+        assertEquals(1, restored.changeLog.getVersion());
+        assertEquals(firstEnd, segment.length());
+        restored.store.close();
+    }
+
+    @Test
+    public void restoresFromSnapshotAndRotatedSegments() throws Exception {
+        File dir = folder.newFolder();
+        // 日志段很小，写入过程中多次换段并写出快照
+        Catalog catalog = Catalog.open(dir, 2048);
+        for (int i = 0; i < 4; i++) {
+            catalog.trust("p:" + i);
+        }
+        for (int i = 0; i < 500; i++) {
+            catalog.index.add(file(i), "p:" + (i % 4));
+            if (i % 5 == 0) {
+                catalog.index.add(file(i), "p:" + ((i + 1) % 4));
+            }
+            if (i % 7 == 0) {
+                catalog.index.remove(file(i), "p:" + (i % 4));
+            }
+            if (i % 10 == 0) {
+                catalog.store.sync();
+            }
+        }
+        catalog.untrust("p:3");
+        catalog.index.removeOwner("p:3");
+
+        // 关闭后全部变更均已写入磁盘，版本不再受限于已写入的部分
+        catalog.store.close();
+        Map<String, Set<String>> expected = catalog.contents();
+        long version = catalog.changeLog.getVersion();
+
+        assertTrue(new File(dir, "snapshot.dat").exists());
+        assertTrue(segments(dir).length > 0);
+
+        Catalog restored = Catalog.open(dir, 2048);
+        assertEquals(expected, restored.contents());
+        assertEquals(version, restored.changeLog.getVersion());
+        assertEquals(new HashSet<>(Arrays.asList("p:0", "p:1", "p:2")), restored.trusted);
+
+        // 再次重启，快照由上一次恢复的结果写出
+        for (int i = 500; i < 600; i++) {
+            restored.index.add(file(i), "p:0");
+        }
+        restored.store.close();
+        expected = restored.contents();
+        version = restored.changeLog.getVersion();
+
+        Catalog again = Catalog.open(dir, 2048);
+        assertEquals(expected, again.contents());
+        assertEquals(version, again.changeLog.getVersion());
+        again.store.close();
+    }
+
+    @Test
+    public void replaysChangesAlreadyInSnapshot() throws Exception {
+        File dir = folder.newFolder();
+        Catalog catalog = Catalog.open(dir, SEGMENT_SIZE);
+        catalog.index.add(file(1), "p:1");
+        catalog.index.add(file(2), "p:1");
+        catalog.index.remove(file(2), "p:1");
+        catalog.store.close();
+        File segment = onlySegment(dir);
+        byte[] log = Files.readAllBytes(segment.toPath());
+
+        // 重启时写出快照，覆盖并删除该日志段
+        Catalog.open(dir, SEGMENT_SIZE).store.close();
+        assertFalse(segment.exists());
+
+        // 快照之后的日志段中再次出现快照已包含的变更，如快照期间写入的变更
+        long[] remaining = segments(dir);
+        File replayed = new File(dir, String.format("wal-%020d.log", remaining[remaining.length - 1] + 1));
+        Files.write(replayed.toPath(), log);
+
+        Catalog restored = Catalog.open(dir, SEGMENT_SIZE);
+        assertEquals(owners("file-1", "p:1"), restored.contents());
+        assertEquals(1, restored.index.size());
+        assertEquals(3, restored.changeLog.getVersion());
+        restored.store.close();
+    }
+
+    /**
+     * 中央服务器中与存储相关的状态
+     */
+    private static class Catalog {
+
+        private final ChangeLog changeLog = new ChangeLog(1000);
+
+        private final FileIndex index = new FileIndex(changeLog);
+
+        private final Set<String> trusted = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        private CatalogStore store;
+
+        static Catalog open(File dir, long segmentSize) throws IOException {
+            Catalog catalog = new Catalog();
+            catalog.store = new CatalogStore(dir, segmentSize);
+            catalog.store.open(catalog.index, catalog.changeLog, catalog.trusted);
+            return catalog;
+        }
+
+        void trust(String owner) {
+            trusted.add(owner);
+            store.logTrust(true, owner);
+        }
+
+        void untrust(String owner) {
+            trusted.remove(owner);
+            store.logTrust(false, owner);
+        }
+
+        /**
+         * 文件名到拥有者的映射
+         */
+        Map<String, Set<String>> contents() {
+            Map<String, Set<String>> contents = new TreeMap<>();
+            for (Map.Entry<FileInfo, List<String>> entry : index.snapshot().entrySet()) {
+                contents.put(entry.getKey().getName(), new HashSet<>(entry.getValue()));
+            }
+            return contents;
+        }
+    }
+
+    private static FileInfo file(int i) {
+        FileInfo info = new FileInfo("file-" + i, String.format("%032x", i), 1000L * i);
+        List<String> pieceHashes = new ArrayList<>();
+        pieceHashes.add(String.format("%032x", 2 * i));
+        pieceHashes.add(String.format("%032x", 2 * i + 1));
+        info.setPieceHashes(pieceHashes);
+        return info;
+    }
+
+    private static Map<String, Set<String>> owners(String name, String... owners) {
+        Map<String, Set<String>> contents = new TreeMap<>();
+        contents.put(name, new HashSet<>(Arrays.asList(owners)));
+        return contents;
+    }
+
+    private static long[] segments(File dir) {
+        String[] names = dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("wal-");
+            }
+        });
+        long[] segments = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            segments[i] = Long.parseLong(names[i].substring(4, names[i].length() - 4));
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static File onlySegment(File dir) {
+        long[] segments = segments(dir);
+        assertEquals(1, segments.length);
+        return new File(dir, String.format("wal-%020d.log", segments[0]));
+    }
+
+    private static void truncate(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.nov21th.util;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MerkleTreeTest {
+
+    private static final int MB = 1024 * 1024;
+
+    private static ForkJoinPool pool;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void startPool() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterClass
+    public static void stopPool() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void parallelRootMatchesSequentialReference() throws Exception {
+        // 文件大小与分块大小均不是2的幂，文件大小也不是分块大小的整数倍
+        int[][] cases = {
+                {MB + 12345, 1000},
+                {3 * MB + 7, 4096},
+                {2 * MB + 1, 65537},
+                {5 * MB - 3, 3 * 333333},
+        };
+        for (int[] c : cases) {
+            byte[] data = randomBytes(c[0], c[0]);
+            File file = write(data);
+
+            MerkleTree tree = new MerkleTree("MD5", c[1], pool);
+            List<String> blockHashes = new ArrayList<>();
+            String root = tree.hash(file, blockHashes);
+
+            List<String> expected = referenceLeaves("MD5", data, c[1]);
+            assertEquals(expected, blockHashes);
+            assertEquals(referenceRoot("MD5", expected), root);
+        }
+    }
+
+    @Test
+    public void parallelRootMatchesSequentialPool() throws Exception {
+        byte[] data = randomBytes(3 * MB + 999, 1);
+        File file = write(data);
+
+        ForkJoinPool sequential = new ForkJoinPool(1);
+        try {
+            List<String> parallelHashes = new ArrayList<>();
+            String parallel = new MerkleTree("SHA-256", 7777, pool).hash(file, parallelHashes);
+            List<String> sequentialHashes = new ArrayList<>();
+            String expected = new MerkleTree("SHA-256", 7777, sequential).hash(file, sequentialHashes);
+
+            assertEquals(sequentialHashes, parallelHashes);
+            assertEquals(expected, parallel);
+            assertEquals(referenceRoot("SHA-256", referenceLeaves("SHA-256", data, 7777)), parallel);
+        } finally {
+            sequential.shutdown();
+        }
+    }
+
+    @Test
+    public void smallFileMatchesReference() throws Exception {
+        byte[] data = randomBytes(10007, 2);
+        List<String> blockHashes = new ArrayList<>();
+        String root = new MerkleTree("MD5", 1000, pool).hash(write(data), blockHashes);
+
+        List<String> expected = referenceLeaves("MD5", data, 1000);
+        assertEquals(11, blockHashes.size());
+        assertEquals(expected, blockHashes);
+        assertEquals(referenceRoot("MD5", expected), root);
+    }
+
+    @Test
+    public void emptyFileHasDigestOfEmptyData() throws Exception {
+        List<String> blockHashes = new ArrayList<>();
+        String root = new MerkleTree("MD5", 1000, pool).hash(write(new byte[0]), blockHashes);
+
+        assertTrue(blockHashes.isEmpty());
+        assertEquals(MD5Util.toHexString(MessageDigest.getInstance("MD5").digest()), root);
+    }
+
+    @Test
+    public void separatesLeavesFromNodes() throws Exception {
+        MerkleTree tree = new MerkleTree("MD5", 1000, pool);
+        byte[] data = randomBytes(2000, 3);
+        List<String> blockHashes = new ArrayList<>();
+        String root = tree.hash(write(data), blockHashes);
+
+        // 以两个子节点摘要拼接而成的一块数据，其摘要不等于父节点的摘要
+        byte[] forged = concat(fromHex(blockHashes.get(0)), fromHex(blockHashes.get(1)));
+        assertNotEquals(root, tree.hashBlock(ByteBuffer.wrap(forged)));
+        assertFalse(tree.verifyBlock(0, ByteBuffer.wrap(forged), Collections.singletonList(root)));
+
+        // 叶子的摘要不是块数据的原始摘要
+        byte[] block = new byte[1000];
+        System.arraycopy(data, 0, block, 0, block.length);
+        assertNotEquals(MD5Util.toHexString(MessageDigest.getInstance("MD5").digest(block)), blockHashes.get(0));
+        assertTrue(tree.verifyBlock(0, ByteBuffer.wrap(block), blockHashes));
+    }
+
+    /**
+     * 逐块计算0x00与块数据拼接后的摘要
+     */
+    private static List<String> referenceLeaves(String algorithm, byte[] data, int blockSize) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        List<String> leaves = new ArrayList<>();
+        for (int offset = 0; offset < data.length; offset += blockSize) {
+            digest.update((byte) 0x00);
+            digest.update(data, offset, Math.min(blockSize, data.length - offset));
+            leaves.add(MD5Util.toHexString(digest.digest()));
+        }
+        return leaves;
+    }
+
+    /**
+     * 逐层两两合并，父节点为0x01与两个子节点摘要拼接后的摘要，落单的节点直接上升一层
+     */
+    private static String referenceRoot(String algorithm, List<String> leaves) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        List<byte[]> level = new ArrayList<>();
+        for (String leaf : leaves) {
+            level.add(fromHex(leaf));
+        }
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += 2) {
+                if (i + 1 == level.size()) {
+                    parents.add(level.get(i));
+                } else {
+                    digest.update((byte) 0x01);
+                    digest.update(level.get(i));
+                    digest.update(level.get(i + 1));
+                    parents.add(digest.digest());
+                }
+            }
+            level = parents;
+        }
+        return MD5Util.toHexString(level.get(0));
+    }
+
+    private File write(byte[] data) throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}